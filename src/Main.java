@@ -1,6 +1,7 @@
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 import java.net.InetAddress;
 import java.util.zip.*;
@@ -10,8 +11,16 @@ public class Main {
     // ====== 第 1 段開始：初始化 + 設定載入 + 昨天區間 + 來源路徑解析 ======
     // ====== 第 1 段開始：初始化 + 設定載入 + 昨天區間 + 來源路徑解析（修正版） ======
     public static void main(String[] args) {
+        // 模式：預設為上傳端；--collect / --query / --fetch 為 NAS 收集端（第一個參數）
+        String mode = "upload";
+        int argi = 0;
+        if (args != null && args.length > 0 && args[0].startsWith("--")) {
+            mode = args[0].substring(2);
+            argi = 1;
+        }
+
         // 預設讀取 config.txt（可用參數覆寫）
-        String propPath = (args != null && args.length > 0) ? args[0] : "config.txt";
+        String propPath = (args != null && args.length > argi) ? args[argi] : "config.txt";
 
         Properties p = new Properties();
         InputStream in = null;
@@ -31,6 +40,22 @@ public class Main {
         Log.init(p, tz);
         Log.info("Logger initialized. Level=" + p.getProperty("log.level","INFO"));
 
+        if (!"upload".equals(mode)) {
+            runCollectorMode(mode, Arrays.copyOfRange(args, Math.min(args.length, argi + 1), args.length), p, tz);
+            return;
+        }
+
+        // 資源節流只用在上傳端（測試機）；NAS 收集端照 collector.threads 執行
+        Governor.init(p, tz);
+        try {
+            runUpload(p, tz, timezoneId);
+        } finally {
+            Governor.report();
+        }
+    }
+
+    // 上傳端：第 1 段（來源解析）→ 第 2 段（staging + 壓縮）→ 第 3 段（上傳）
+    private static void runUpload(Properties p, TimeZone tz, String timezoneId) {
         // 讀取關鍵設定
         String sourcePathsCsv  = p.getProperty("source.paths", "");
         int    expandDepth     = parseInt(p.getProperty("source.expand.depth", "0"), 0);
@@ -42,6 +67,9 @@ public class Main {
         long startMillis = range[0];
         long endMillis   = range[1];
 
+        // 掃描剪枝規則（依名稱日期 / 目錄 mtime；皆未設定時等同逐檔比對 lastModified）
+        SelectRules selectRules = SelectRules.fromProperties(p, tz);
+
         // 日期字串（檔名/遠端目錄用）
         String remoteDatePattern = p.getProperty("remote.dir.date.pattern", "yyyyMMdd");
         SimpleDateFormat ymd = new SimpleDateFormat(remoteDatePattern);
@@ -67,6 +95,7 @@ public class Main {
         for (File d : baseDirs) {
             log("  - " + d.getAbsolutePath());
         }
+        log("掃描剪枝規則: " + selectRules.describe());
 
         // 預告壓縮檔名（供你核對）
         String hostname = getHostname();
@@ -80,6 +109,8 @@ public class Main {
         String zipOutDir = p.getProperty("zip.output.dir", "out");
         File outDir = new File(zipOutDir);
         if (!outDir.exists()) { outDir.mkdirs(); }
+        // 每顆 zip 旁產生 <zip>.idx 索引（各檔 local header offset 等），隨 zip 一起上傳
+        boolean zipIndexEnabled = Boolean.parseBoolean(p.getProperty("zip.index.enabled", "true"));
 
         String stagingBase = p.getProperty("staging.base.dir", "staging");
         boolean stagingCleanup = Boolean.parseBoolean(p.getProperty("staging.cleanup", "false"));
@@ -111,11 +142,17 @@ public class Main {
         List<File> zipsToUpload = new ArrayList<File>();
         List<File> stagingRoots = new ArrayList<File>(); // 供清理用
 
+        // 持續附加的 log：符合 incremental.path.regex 的檔案只送新增的尾段（不搬移來源）
+        IncrementalShipper incremental = IncrementalShipper.fromProperties(p);
+        if (incremental.isEnabled()) {
+            log("增量模式: path.regex=" + incremental.pathPattern.pattern() + "，狀態檔: " + incremental.stateFile.getAbsolutePath());
+        }
+
         // 1) 固定路徑：各建立 staging/<basename>_yyyyMMdd，搬移昨天檔案進去，再各自壓一顆 zip
         for (int i = 0; i < fixedRoots.size(); i++) {
             File base = fixedRoots.get(i);
             List<File> selected = new ArrayList<File>();
-            collectFilesByLastModified(base, startMillis, endMillis, selected);
+            collectFilesByLastModified(base, startMillis, endMillis, selectRules, selected);
             if (selected.isEmpty()) {
                 Log.info("→ [" + base.getName() + "] 無前一天檔案，略過搬移與壓縮。");
                 continue;
@@ -126,25 +163,39 @@ public class Main {
 
             // 搬移（保留相對於 base 的路徑結構）
             String baseAbs = base.getAbsolutePath();
+            int staged = 0;
             for (int j = 0; j < selected.size(); j++) {
+                Governor.checkpoint();
                 File src = selected.get(j);
                 String rel = toRelativePath(baseAbs, src.getAbsolutePath());
                 File dst = new File(stagingRoot, rel);
                 ensureDir(dst.getParentFile());
                 try {
+                    if (incremental.matches(src)) {
+                        if (incremental.stage(src, dst, stagingRoot)) staged++;
+                        continue;
+                    }
                     moveFileWithFallback(src, dst);
+                    staged++;
                 } catch (IOException e) {
                     Log.error("搬移失敗: " + src.getAbsolutePath() + " -> " + dst.getAbsolutePath() + "，原因: " + e.getMessage());
                 }
             }
+            if (staged == 0) {
+                Log.info("→ [" + base.getName() + "] 沒有需要送出的新內容，略過壓縮。");
+                continue;
+            }
 
             // 壓縮 stagingRoot → out/<basename>_yyyyMMdd.zip
             File zipFile = new File(outDir, base.getName() + "_" + dateStr + ".zip");
             try {
-                zipFolder(stagingRoot, zipFile);
+                incremental.writeManifest(stagingRoot);
+                File indexFile = zipFolder(stagingRoot, zipFile, base.getName(), zipIndexEnabled);
                 Log.info("→ 已建立壓縮檔: " + zipFile.getAbsolutePath() + " (" + zipFile.length() + " bytes)");
                 zipsToUpload.add(zipFile);
+                if (indexFile != null) zipsToUpload.add(indexFile); // 排在 zip 之後；zip 沒傳成功的目的地不送 idx，idx 存在即表示 zip 已傳完
             } catch (IOException e) {
+                incremental.discard(stagingRoot);
                 Log.error("壓縮失敗(perBase): " + stagingRoot.getAbsolutePath() + " -> " + zipFile.getAbsolutePath() + "，原因: " + e.getMessage());
             }
         }
@@ -167,21 +218,26 @@ public class Main {
                 for (int t = 0; t < testers.size(); t++) {
                     File testerRoot = testers.get(t);
                     List<File> selected = new ArrayList<File>();
-                    collectFilesByLastModified(testerRoot, startMillis, endMillis, selected);
+                    collectFilesByLastModified(testerRoot, startMillis, endMillis, selectRules, selected);
                     if (selected.isEmpty()) continue;
 
-                    hasAny = true;
                     File testerStage = new File(mergedStagingRoot, testerRoot.getName());
                     ensureDir(testerStage);
 
                     String baseAbs = testerRoot.getAbsolutePath();
                     for (int j = 0; j < selected.size(); j++) {
+                        Governor.checkpoint();
                         File src = selected.get(j);
                         String rel = toRelativePath(baseAbs, src.getAbsolutePath());
                         File dst = new File(testerStage, rel);
                         ensureDir(dst.getParentFile());
                         try {
+                            if (incremental.matches(src)) {
+                                if (incremental.stage(src, dst, mergedStagingRoot)) hasAny = true;
+                                continue;
+                            }
                             moveFileWithFallback(src, dst);
+                            hasAny = true;
                         } catch (IOException e) {
                             Log.error("搬移失敗(合併): " + src.getAbsolutePath() + " -> " + dst.getAbsolutePath() + "，原因: " + e.getMessage());
                         }
@@ -194,10 +250,13 @@ public class Main {
                 stagingRoots.add(mergedStagingRoot);
                 File mergedZip = new File(outDir, hostname + "_" + dateStr + ".zip");
                 try {
-                    zipFolder(mergedStagingRoot, mergedZip);
+                    incremental.writeManifest(mergedStagingRoot);
+                    File indexFile = zipFolder(mergedStagingRoot, mergedZip, null, zipIndexEnabled);
                     Log.info("→ 已建立合併壓縮檔: " + mergedZip.getAbsolutePath() + " (" + mergedZip.length() + " bytes)");
                     zipsToUpload.add(mergedZip);
+                    if (indexFile != null) zipsToUpload.add(indexFile);
                 } catch (IOException e) {
+                    incremental.discard(mergedStagingRoot);
                     Log.error("壓縮失敗(合併): " + mergedStagingRoot.getAbsolutePath() + " -> " + mergedZip.getAbsolutePath() + "，原因: " + e.getMessage());
                 }
             } else {
@@ -205,6 +264,10 @@ public class Main {
             }
         }
 
+        if (selectRules.isEnabled()) {
+            Log.info("掃描剪枝統計: " + selectRules.summary());
+        }
+
         // 若需要在壓縮完成後清空 staging
         if (stagingCleanup) {
             for (int i = 0; i < stagingRoots.size(); i++) {
@@ -219,14 +282,6 @@ public class Main {
 
         // TODO（第 3 段）：FTP 連線 + 遞迴建立遠端目錄 + 上傳 zip
         // === 第 3 段開始：FTP 上傳 ===
-        String ftpHost = p.getProperty("ftp.host", "");
-        int    ftpPort = parseInt(p.getProperty("ftp.port", "21"), 21);
-        String ftpUser = p.getProperty("ftp.username", "");
-        String ftpPass = p.getProperty("ftp.password", "");
-        String ftpRemoteBaseRaw = p.getProperty("ftp.remote.base", "/upload");
-        boolean ftpPassive = Boolean.parseBoolean(p.getProperty("ftp.passive", "true"));
-        int connectTimeout = parseInt(p.getProperty("ftp.connect.timeout.ms", "15000"), 15000);
-        int dataTimeout = parseInt(p.getProperty("ftp.data.timeout.ms", "30000"), 30000);
         boolean remoteAppendDateDir = Boolean.parseBoolean(p.getProperty("remote.append.date.dir", "true"));
 
         boolean dryRun = Boolean.parseBoolean(p.getProperty("dry.run", "false"));
@@ -236,70 +291,140 @@ public class Main {
             return;
         }
 
-        String ftpRemoteBase = replaceHostnameVars(ftpRemoteBaseRaw, hostname); // 支援 {hostname}
-        String remoteDir = ftpRemoteBase;
-        if (remoteAppendDateDir) remoteDir = ftpRemoteBase + "/" + dateStr;
+        // 目的地：ftp.* 為主要目的地，ftp.mirrors 列出的名稱為額外鏡像（各自帳密與 remote.base）
+        String remoteDateDir = remoteAppendDateDir ? dateStr : null;
+        List<FtpTarget> targets = FtpTarget.fromProperties(p, hostname, remoteDateDir);
 
         if (dryRun) {
             Log.info("dry.run=true，僅列出將上傳的檔案與遠端目錄：");
-            Log.info("  遠端目錄: " + remoteDir);
+            for (int i = 0; i < targets.size(); i++) {
+                FtpTarget t = targets.get(i);
+                Log.info("  [" + t.name + "] " + t.host + ":" + t.port + " 遠端目錄: " + t.remoteDir);
+            }
             for (int i = 0; i < zipsToUpload.size(); i++) {
                 Log.info("  - " + zipsToUpload.get(i).getAbsolutePath());
             }
+            if (incremental.hasPending()) {
+                Log.info("dry.run=true，增量位移不寫回狀態檔（下次仍會送出相同尾段）。");
+            }
             return;
         }
 
-        // 連線與上傳（需 commons-net）
-        org.apache.commons.net.ftp.FTPClient ftp = new org.apache.commons.net.ftp.FTPClient();
-        try {
-            ftp.setConnectTimeout(connectTimeout);
-            ftp.setDefaultTimeout(connectTimeout);
-            ftp.setDataTimeout(dataTimeout);
-            ftp.setControlEncoding("UTF-8");
-
-            Log.info("連線 FTP: " + ftpHost + ":" + ftpPort);
-            ftp.connect(ftpHost, ftpPort);
-            int reply = ftp.getReplyCode();
-            if (!org.apache.commons.net.ftp.FTPReply.isPositiveCompletion(reply)) {
-                throw new IOException("FTP 連線被拒絕, replyCode=" + reply);
+        // 連線與上傳（需 commons-net）：每顆 zip 只讀一次，同時分送到所有目的地
+        FanoutUploader uploader = new FanoutUploader(targets,
+                parseInt(p.getProperty("upload.fanout.chunk.kb", "64"), 64) * 1024,
+                parseInt(p.getProperty("upload.fanout.buffer.chunks", "64"), 64),
+                parseInt(p.getProperty("upload.fanout.stall.ms", "5000"), 5000));
+        MirrorBacklog backlog = MirrorBacklog.load(new File(p.getProperty("upload.mirror.backlog.file", "state/mirror_backlog.tsv")));
+        for (int i = 1; i < targets.size(); i++) {
+            targets.get(i).catchUp = backlog.get(targets.get(i).name);
+        }
+        boolean primaryOk = uploader.upload(zipsToUpload);
+        for (int i = 1; i < targets.size(); i++) {
+            FtpTarget t = targets.get(i);
+            List<String[]> behind = new ArrayList<String[]>(t.behind);
+            backlog.set(t.name, behind);
+            if (!behind.isEmpty()) {
+                Log.warn("[" + t.name + "] 鏡像落後 " + behind.size() + " 顆，已記入補傳清單，下次執行會先補傳: " + backlog.file.getAbsolutePath());
             }
-
-            if (!ftp.login(ftpUser, ftpPass)) {
-                throw new IOException("FTP 登入失敗，請檢查帳密。");
+        }
+        backlog.save();
+
+        // 增量位移以主要目的地為準；鏡像漏接的部分由補傳清單追上，不拖住主要目的地
+        if (primaryOk) {
+            Log.info("主要目的地上傳完成。");
+            incremental.commit();
+        } else {
+            Log.error("主要目的地上傳失敗，詳見上方各目的地結果。");
+            if (incremental.hasPending()) {
+                Log.warn("主要目的地未完成，增量位移不寫回（下次會重送相同尾段）。");
             }
+        }
+        // === 第 3 段結束 ===
 
-            if (ftpPassive) ftp.enterLocalPassiveMode();
-            ftp.setFileType(org.apache.commons.net.ftp.FTP.BINARY_FILE_TYPE);
-            ftp.setBufferSize(8192);
 
-            ensureRemoteDirectory(ftp, remoteDir);
-            Log.info("遠端上傳目錄: " + remoteDir);
+    }
 
-            for (int i = 0; i < zipsToUpload.size(); i++) {
-                File zf = zipsToUpload.get(i);
-                String remotePath = remoteDir + "/" + zf.getName();
-                Log.info("上傳: " + zf.getName());
-                BufferedInputStream bis = null;
-                try {
-                    bis = new BufferedInputStream(new FileInputStream(zf));
-                    boolean ok = ftp.storeFile(remotePath, bis);
-                    if (!ok) throw new IOException("storeFile 失敗: " + ftp.getReplyString());
-                } finally {
-                    closeQuietly(bis);
+    // 收集端指令分派
+    //   --collect config.txt
+    //   --query   config.txt <yyyyMMdd> [host] [tester] [pathRegex]
+    //   --fetch   config.txt <yyyyMMdd> <host> <tester> <path> <輸出檔>
+    //   --remote-fetch config.txt <遠端 zip 路徑> <zip 內路徑> <輸出檔>（用 ftp.* 連線）
+    private static void runCollectorMode(String mode, String[] rest, Properties p, TimeZone tz) {
+        Collector c = new Collector(p, tz);
+        if ("collect".equals(mode)) {
+            c.run();
+        } else if ("query".equals(mode) && rest.length >= 1) {
+            List<String[]> rows = c.query(rest[0], arg(rest, 1), arg(rest, 2), arg(rest, 3));
+            System.out.println(Collector.CATALOG_HEADER.substring(2));
+            for (int i = 0; i < rows.size(); i++) {
+                StringBuilder sb = new StringBuilder();
+                for (int j = 0; j < rows.get(i).length; j++) {
+                    if (j > 0) sb.append('\t');
+                    sb.append(rows.get(i)[j]);
                 }
+                System.out.println(sb);
             }
-            Log.info("全部上傳完成。");
-        } catch (Exception e) {
-            Log.error("FTP 發生錯誤: " + e.getMessage(), e);
-        } finally {
-            if (ftp.isConnected()) {
-                try { ftp.logout(); } catch (Exception ignore) {}
-                try { ftp.disconnect(); } catch (Exception ignore) {}
-            }
+            Log.info("查詢結果 " + rows.size() + " 筆");
+        } else if ("fetch".equals(mode) && rest.length >= 5) {
+            c.fetch(rest[0], rest[1], rest[2], rest[3], new File(rest[4]));
+        } else if ("remote-fetch".equals(mode) && rest.length >= 3) {
+            FtpTarget t = FtpTarget.fromProperties(p, getHostname(), null).get(0);
+            remoteFetch(t, rest[0], rest[1], new File(rest[2]));
+        } else {
+            Log.error("未知的模式或參數不足: --" + mode + " " + Arrays.toString(rest));
         }
-        // === 第 3 段結束 ===
+    }
+
+    // 依 <zip>.idx 取得 offset，以 FTP REST 從該位置開始下載，只讀出單一 entry 後中止傳輸
+    private static boolean remoteFetch(FtpTarget t, String remoteZip, String entryPath, File dest) {
+        org.apache.commons.net.ftp.FTPClient ftp = null;
+        OutputStream out = null;
+        try {
+            ftp = t.login();
+            ByteArrayOutputStream idx = new ByteArrayOutputStream();
+            if (!ftp.retrieveFile(remoteZip + ".idx", idx)) {
+                throw new IOException("下載索引失敗: " + remoteZip + ".idx, reply=" + ftp.getReplyString());
+            }
+            ZipIndex.Entry e = null;
+            BufferedReader r = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(idx.toByteArray()), "UTF-8"));
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                String[] c = line.split("\t", -1);
+                if (c.length != ZipIndex.ROW_WIDTH) continue;
+                // 合併模式的 zip 內路徑為 {tester}/{path}
+                if (c[1].equals(entryPath) || (c[0] + "/" + c[1]).equals(entryPath)) { e = ZipIndex.Entry.fromRow(c, 0); break; }
+            }
+            if (e == null) throw new IOException("索引中找不到: " + entryPath);
 
+            ftp.setRestartOffset(e.offset);
+            InputStream in = ftp.retrieveFileStream(remoteZip);
+            if (in == null) throw new IOException("REST 下載失敗: " + ftp.getReplyString());
+            try {
+                ensureDir(dest.getAbsoluteFile().getParentFile());
+                out = new BufferedOutputStream(new FileOutputStream(dest));
+                ZipIndex.extract(in, e, out);
+                out.close();
+                out = null;
+            } finally {
+                closeQuietly(in); // 提前關閉資料連線，伺服器回 426 屬正常
+                try { ftp.completePendingCommand(); } catch (Exception ignore) {}
+            }
+            dest.setLastModified(e.mtime);
+            Log.info("已取出: " + remoteZip + " @" + e.offset + " -> " + dest.getAbsolutePath() + " (" + e.size + " bytes)");
+            return true;
+        } catch (IOException ex) {
+            Log.error("遠端取出失敗: " + remoteZip + " " + entryPath + "，原因: " + ex.getMessage());
+            return false;
+        } finally {
+            closeQuietly(out);
+            disconnectQuietly(ftp);
+        }
+    }
 
+    private static String arg(String[] a, int i) {
+        return i < a.length ? a[i] : null;
     }
 
     // 解析並展開 source.paths，支援像 C:/GIT/data/* 這種一層展開
@@ -347,15 +472,28 @@ public class Main {
     }
 
     // 以最後修改時間篩選 [startMillis, endMillis)
-    private static void collectFilesByLastModified(File base, long startMillis, long endMillis, List<File> out) {
-        File[] list = base.listFiles();
-        if (list == null) return;
-        for (int i = 0; i < list.length; i++) {
-            File f = list[i];
+    // 先套用 rules：名稱日期落在區間外的檔案/資料夾整個略過（不 stat、不往下走），
+    // 目錄 mtime 早於區間起點的子資料夾亦略過；都不符合時才逐檔比對 lastModified
+    private static void collectFilesByLastModified(File base, long startMillis, long endMillis, SelectRules rules, List<File> out) {
+        Governor.checkpoint();
+        String[] names = base.list();
+        if (names == null) return;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (rules != null && rules.isNameOutsideRange(name, startMillis, endMillis)) {
+                rules.prunedByName++;
+                continue;
+            }
+            File f = new File(base, name);
             if (f.isDirectory()) {
-                collectFilesByLastModified(f, startMillis, endMillis, out);
+                if (rules != null && rules.pruneDirByMtime && f.lastModified() < startMillis) {
+                    rules.prunedByDirMtime++;
+                    continue;
+                }
+                collectFilesByLastModified(f, startMillis, endMillis, rules, out);
             } else {
                 long lm = f.lastModified();
+                if (rules != null) rules.filesChecked++;
                 if (lm >= startMillis && lm < endMillis) {
                     out.add(f);
                 }
@@ -363,6 +501,316 @@ public class Main {
         }
     }
 
+    // ===== 增量尾段傳送（incremental.*）=====
+    // 狀態檔每個檔案記一筆：絕對路徑 = 已送出位移,已送出前綴的 CRC32
+    // 前綴 CRC 相符 → 只送 [offset, length) 成 <檔名>.delta；不符或檔案變短 → 視為被改寫，送完整檔
+    // 每個 staging root 產生一份 manifest（tab 分隔），接收端據此重建：
+    //   FULL  <path> <entry> 0      <length> <crc32>  → 以 entry 取代 path
+    //   DELTA <path> <entry> <offset> <length> <crc32> → path 截到 offset 後接上 entry，結果應等於 crc32
+    // 狀態只在全部上傳成功後才寫回；中途失敗時下次會從舊位移重送（接收端依 offset 截斷，重送無害）
+    private static final class IncrementalShipper {
+        Pattern pathPattern;
+        File stateFile;
+        String manifestName;
+        Properties state = new Properties();
+
+        // stagingRoot 絕對路徑 → manifest 行 / 待寫回狀態
+        private final Map<String, List<String>> manifests = new LinkedHashMap<String, List<String>>();
+        private final Map<String, Properties> pending = new LinkedHashMap<String, Properties>();
+
+        static IncrementalShipper fromProperties(Properties p) {
+            IncrementalShipper s = new IncrementalShipper();
+            String regex = p.getProperty("incremental.path.regex", "").trim();
+            s.stateFile = new File(p.getProperty("incremental.state.file", "state/incremental_offsets.properties"));
+            s.manifestName = p.getProperty("incremental.manifest.name", "_incremental_manifest.tsv");
+            if (regex.length() == 0) return s;
+            try {
+                s.pathPattern = Pattern.compile(regex);
+            } catch (Exception e) {
+                Log.warn("incremental.path.regex 無法解析，停用增量模式: " + e.getMessage());
+                return s;
+            }
+            if (s.stateFile.exists()) {
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(s.stateFile);
+                    s.state.load(in);
+                } catch (IOException e) {
+                    Log.warn("讀取增量狀態檔失敗，本次一律送完整檔: " + e.getMessage());
+                    s.state.clear();
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+            return s;
+        }
+
+        boolean isEnabled() { return pathPattern != null; }
+
+        boolean hasPending() { return !pending.isEmpty(); }
+
+        boolean matches(File f) {
+            return pathPattern != null && pathPattern.matcher(f.getAbsolutePath().replace('\\', '/')).find();
+        }
+
+        // 將 src 的新內容放進 staging（來源保留不動）；沒有新內容時回傳 false
+        boolean stage(File src, File dst, File stagingRoot) throws IOException {
+            String key = src.getAbsolutePath();
+            long length = src.length(); // 以當下長度為快照，之後追加的內容留給下一次
+            long offset = -1;
+            long prefixCrc = 0;
+            String rec = state.getProperty(key);
+            if (rec != null) {
+                int comma = rec.indexOf(',');
+                try {
+                    offset = Long.parseLong(rec.substring(0, comma).trim());
+                    prefixCrc = Long.parseLong(rec.substring(comma + 1).trim(), 16);
+                } catch (Exception e) {
+                    offset = -1;
+                }
+            }
+            if (offset > length) offset = -1; // 檔案變短：必定被改寫
+
+            // 單次讀取：前段算 CRC 與狀態比對，尾段同時寫入 delta 並續算整檔 CRC
+            CRC32 crc = new CRC32();
+            File tmp = new File(dst.getParentFile(), dst.getName() + ".part");
+            File deltaFile = new File(dst.getParentFile(), dst.getName() + ".delta");
+            BufferedInputStream in = null;
+            BufferedOutputStream out = null;
+            boolean delta = false;
+            try {
+                in = new BufferedInputStream(new FileInputStream(src));
+                byte[] buf = new byte[8192];
+                long pos = 0;
+                if (offset >= 0) {
+                    while (pos < offset) {
+                        int n = in.read(buf, 0, (int) Math.min(buf.length, offset - pos));
+                        if (n < 0) break;
+                        crc.update(buf, 0, n);
+                        pos += n;
+                        Governor.checkpoint();
+                    }
+                    delta = pos == offset && crc.getValue() == prefixCrc;
+                }
+                if (!delta) {
+                    // 改寫或首次：從頭重讀一次完整檔
+                    closeQuietly(in);
+                    in = new BufferedInputStream(new FileInputStream(src));
+                    crc.reset();
+                    offset = 0;
+                    pos = 0;
+                } else if (offset == length) {
+                    Log.debug("增量: 無新內容，略過 " + key);
+                    // 同日稍早的執行可能留下舊的輸出，不清掉會在沒有 manifest 記錄的情況下被一起壓縮
+                    dst.delete();
+                    deltaFile.delete();
+                    return false;
+                }
+                out = new BufferedOutputStream(new FileOutputStream(tmp));
+                try {
+                    while (pos < length) {
+                        int n = in.read(buf, 0, (int) Math.min(buf.length, length - pos));
+                        if (n < 0) throw new IOException("讀取中檔案變短: " + key);
+                        crc.update(buf, 0, n);
+                        out.write(buf, 0, n);
+                        pos += n;
+                        Governor.checkpoint();
+                    }
+                    out.close(); // 寫入錯誤在這裡浮現，同樣清掉暫存檔
+                    out = null;
+                } catch (IOException e) {
+                    // 半份暫存檔不能留在 staging，否則會被壓進 zip
+                    closeQuietly(out);
+                    out = null;
+                    tmp.delete();
+                    throw e;
+                }
+            } finally {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
+
+            File target = delta ? deltaFile : dst;
+            File other = delta ? dst : deltaFile; // 同日稍早執行留下的另一種輸出
+            if (other.exists()) other.delete();
+            if (target.exists()) target.delete();
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                throw new IOException("無法建立增量檔: " + target.getAbsolutePath());
+            }
+            target.setLastModified(src.lastModified());
+
+            String rootAbs = stagingRoot.getAbsolutePath();
+            String path = toRelativePath(rootAbs, dst.getAbsolutePath()).replace('\\', '/');
+            String entry = toRelativePath(rootAbs, target.getAbsolutePath()).replace('\\', '/');
+            List<String> lines = manifests.get(rootAbs);
+            if (lines == null) { lines = new ArrayList<String>(); manifests.put(rootAbs, lines); }
+            lines.add((delta ? "DELTA" : "FULL") + "\t" + path + "\t" + entry + "\t" + offset + "\t" + length
+                    + "\t" + Long.toHexString(crc.getValue()));
+
+            Properties pend = pending.get(rootAbs);
+            if (pend == null) { pend = new Properties(); pending.put(rootAbs, pend); }
+            pend.setProperty(key, length + "," + Long.toHexString(crc.getValue()));
+
+            Log.info("增量: " + (delta ? "DELTA +" + (length - offset) + " bytes @" + offset : "FULL " + length + " bytes") + " " + key);
+            return true;
+        }
+
+        // 壓縮前呼叫：把 manifest 寫進 staging root，隨 zip 一起送出
+        void writeManifest(File stagingRoot) throws IOException {
+            List<String> lines = manifests.get(stagingRoot.getAbsolutePath());
+            if (lines == null || lines.isEmpty()) return;
+            Writer w = null;
+            try {
+                w = new OutputStreamWriter(new FileOutputStream(new File(stagingRoot, manifestName)), "UTF-8");
+                w.write("# mode\tpath\tentry\toffset\tlength\tcrc32\n");
+                for (int i = 0; i < lines.size(); i++) {
+                    w.write(lines.get(i));
+                    w.write("\n");
+                }
+            } finally {
+                closeQuietly(w);
+            }
+        }
+
+        // 該 staging root 的 zip 沒做出來：不寫回其位移
+        void discard(File stagingRoot) {
+            pending.remove(stagingRoot.getAbsolutePath());
+        }
+
+        // 全部上傳成功後寫回狀態檔（先寫暫存檔再換名）
+        void commit() {
+            if (pending.isEmpty()) return;
+            for (Properties pend : pending.values()) state.putAll(pend);
+            ensureDir(stateFile.getAbsoluteFile().getParentFile());
+            File tmp = new File(stateFile.getAbsolutePath() + ".tmp");
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp);
+                state.store(out, "incremental shipped offsets: offset,crc32(hex)");
+                closeQuietly(out);
+                out = null;
+                if (stateFile.exists() && !stateFile.delete()) throw new IOException("無法覆寫 " + stateFile.getAbsolutePath());
+                if (!tmp.renameTo(stateFile)) throw new IOException("無法寫入 " + stateFile.getAbsolutePath());
+                pending.clear();
+                Log.info("增量狀態已更新: " + stateFile.getAbsolutePath());
+            } catch (IOException e) {
+                Log.error("寫回增量狀態失敗（下次會重送相同尾段）: " + e.getMessage());
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    // ===== 掃描剪枝規則（select.prune.*）=====
+    // select.prune.name.regex        : 對檔名/資料夾名做 find()，第 1 個擷取群組為日期字串
+    // select.prune.name.date.pattern : 日期格式，可用逗號列多個（如 yyyyMMdd,yyyyMM）；依最細欄位決定涵蓋期間
+    // select.prune.name.grace.hours  : 名稱期間前後各放寬的時數；名稱為 D 的檔案在 D+1 凌晨仍有寫入時，
+    //                                  D+1 那晚不會因名稱被略過，仍交給 lastModified 判斷
+    // select.prune.dir.mtime         : 資料夾自身 mtime 早於區間起點即略過整棵子樹
+    private static final class SelectRules {
+        Pattern namePattern;
+        String[] datePatterns = new String[0];
+        TimeZone tz;
+        long graceMillis;
+        boolean pruneDirByMtime;
+
+        // 統計（寫入 log 用）
+        long prunedByName;
+        long prunedByDirMtime;
+        long filesChecked;
+
+        static SelectRules fromProperties(Properties p, TimeZone tz) {
+            SelectRules r = new SelectRules();
+            r.tz = tz;
+            String regex = p.getProperty("select.prune.name.regex", "").trim();
+            String fmts = p.getProperty("select.prune.name.date.pattern", "yyyyMMdd").trim();
+            if (regex.length() > 0) {
+                try {
+                    r.namePattern = Pattern.compile(regex);
+                    List<String> list = new ArrayList<String>();
+                    List<String> parts = splitCsv(fmts);
+                    for (int i = 0; i < parts.size(); i++) {
+                        String f = parts.get(i).trim();
+                        if (f.length() > 0) list.add(f);
+                    }
+                    r.datePatterns = list.toArray(new String[0]);
+                } catch (Exception e) {
+                    Log.warn("select.prune.name.regex 無法解析，忽略名稱日期剪枝: " + e.getMessage());
+                    r.namePattern = null;
+                }
+                if (r.namePattern != null && r.namePattern.matcher("").groupCount() < 1) {
+                    Log.warn("select.prune.name.regex 缺少日期擷取群組 (...)，忽略名稱日期剪枝。");
+                    r.namePattern = null;
+                }
+            }
+            r.graceMillis = Math.max(0, parseInt(p.getProperty("select.prune.name.grace.hours", "24").trim(), 24)) * 3600000L;
+            r.pruneDirByMtime = Boolean.parseBoolean(p.getProperty("select.prune.dir.mtime", "false").trim());
+            return r;
+        }
+
+        boolean isEnabled() {
+            return namePattern != null || pruneDirByMtime;
+        }
+
+        // 名稱中的日期所涵蓋的期間（前後各加 grace）與 [start, end) 完全不重疊才回傳 true；無法判定一律 false（交給 lastModified）
+        boolean isNameOutsideRange(String name, long startMillis, long endMillis) {
+            if (namePattern == null) return false;
+            java.util.regex.Matcher m = namePattern.matcher(name);
+            if (!m.find()) return false;
+            String ds = m.group(1);
+            if (ds == null || ds.length() == 0) return false;
+            for (int i = 0; i < datePatterns.length; i++) {
+                long[] period = parsePeriod(ds, datePatterns[i]);
+                if (period == null) continue;
+                return period[1] + graceMillis <= startMillis || period[0] - graceMillis >= endMillis;
+            }
+            return false;
+        }
+
+        // 依格式解析日期字串，需完整吃完字串才算成功；回傳 [期間起點, 期間終點)
+        private long[] parsePeriod(String ds, String fmt) {
+            SimpleDateFormat sdf = new SimpleDateFormat(fmt);
+            sdf.setTimeZone(tz);
+            sdf.setLenient(false);
+            java.text.ParsePosition pos = new java.text.ParsePosition(0);
+            Date d = sdf.parse(ds, pos);
+            if (d == null || pos.getIndex() != ds.length()) return null;
+
+            int unit;
+            if (fmt.indexOf('H') >= 0) unit = Calendar.HOUR_OF_DAY;
+            else if (fmt.indexOf('d') >= 0) unit = Calendar.DAY_OF_MONTH;
+            else if (fmt.indexOf('M') >= 0) unit = Calendar.MONTH;
+            else unit = Calendar.YEAR;
+
+            Calendar cal = Calendar.getInstance(tz);
+            cal.setTime(d);
+            long from = cal.getTimeInMillis();
+            cal.add(unit, 1);
+            return new long[]{ from, cal.getTimeInMillis() };
+        }
+
+        String describe() {
+            if (!isEnabled()) return "未啟用（逐檔比對 lastModified）";
+            StringBuilder sb = new StringBuilder();
+            if (namePattern != null) {
+                sb.append("name.regex=").append(namePattern.pattern())
+                  .append(", date.pattern=").append(Arrays.toString(datePatterns))
+                  .append(", grace=").append(graceMillis / 3600000L).append("h");
+            }
+            if (pruneDirByMtime) {
+                if (sb.length() > 0) sb.append("; ");
+                sb.append("dir.mtime=true");
+            }
+            return sb.toString();
+        }
+
+        String summary() {
+            return "依名稱日期略過 " + prunedByName + " 項, 依目錄 mtime 略過 " + prunedByDirMtime
+                    + " 個資料夾, 逐檔比對 " + filesChecked + " 個檔案";
+        }
+    }
+
     // 生成相對路徑：不同磁碟/前綴則退回檔名
     private static String toRelativePath(String baseAbs, String targetAbs) {
         if (targetAbs.startsWith(baseAbs)) {
@@ -507,7 +955,10 @@ public class Main {
             out = new BufferedOutputStream(new FileOutputStream(dst));
             byte[] buf = new byte[8192];
             int n;
-            while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                Governor.checkpoint();
+            }
         } finally {
             closeQuietly(in);
             closeQuietly(out);
@@ -519,18 +970,41 @@ public class Main {
     }
 
     // 將整個資料夾內容壓縮成 ZIP（ZIP 內路徑為相對於 root 的路徑；不含最外層資料夾名）
-    private static void zipFolder(File root, File zipFile) throws IOException {
+    // writeIndex=true 時於壓縮同時記錄每個 entry 的 local header offset / 大小 / CRC，
+    // 完成後寫成 <zip>.idx（不需再讀一次資料）；tester 為 null 表示以第一層資料夾名當 tester（合併模式）
+    private static File zipFolder(File root, File zipFile, String tester, boolean writeIndex) throws IOException {
         java.util.zip.ZipOutputStream zos = null;
+        List<String> index = writeIndex ? new ArrayList<String>() : null;
         try {
-            zos = new java.util.zip.ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
+            zos = new java.util.zip.ZipOutputStream(counter);
             String baseAbs = root.getAbsolutePath();
-            zipFolderRecursive(root, baseAbs, zos);
+            zipFolderRecursive(root, baseAbs, zos, counter, tester, index);
+            zos.close();
+            zos = null;
         } finally {
             closeQuietly(zos);
         }
+        if (index == null) return null;
+
+        File indexFile = new File(zipFile.getParentFile(), zipFile.getName() + ".idx");
+        Writer w = null;
+        try {
+            w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8"));
+            w.write(ZipIndex.archiveStamp(zipFile) + "\n");
+            w.write("# " + ZipIndex.ROW_COLUMNS + "\n");
+            for (int i = 0; i < index.size(); i++) {
+                w.write(index.get(i));
+                w.write("\n");
+            }
+        } finally {
+            closeQuietly(w);
+        }
+        return indexFile;
     }
-    
-    private static void zipFolderRecursive(File cur, String baseAbs, java.util.zip.ZipOutputStream zos) throws IOException {
+
+    private static void zipFolderRecursive(File cur, String baseAbs, java.util.zip.ZipOutputStream zos,
+                                           CountingOutputStream counter, String tester, List<String> index) throws IOException {
         File[] list = cur.listFiles();
         if (list == null) return;
 
@@ -547,28 +1021,633 @@ public class Main {
         for (int i = 0; i < list.length; i++) {
             File f = list[i];
             if (f.isDirectory()) {
-                zipFolderRecursive(f, baseAbs, zos);
+                zipFolderRecursive(f, baseAbs, zos, counter, tester, index);
             } else {
                 String abs = f.getAbsolutePath();
                 String rel = abs.startsWith(baseAbs) ? abs.substring(baseAbs.length()) : f.getName();
                 while (rel.startsWith(File.separator)) rel = rel.substring(1);
                 rel = rel.replace('\\', '/');
+                long mtime = f.lastModified();
                 java.util.zip.ZipEntry ze = new java.util.zip.ZipEntry(rel);
-                ze.setTime(f.lastModified());
+                // 同時寫入延伸時間戳 (0x5455，UTC 秒)；DOS 時間是 JVM 預設時區的當地時間，只能當近似值
+                ze.setLastModifiedTime(java.nio.file.attribute.FileTime.fromMillis(mtime));
+                long offset = counter.count; // 上一個 entry 已 closeEntry，此即本 entry 的 local header 位置
                 zos.putNextEntry(ze);
                 BufferedInputStream in = null;
                 try {
                     in = new BufferedInputStream(new FileInputStream(f));
                     int n;
-                    while ((n = in.read(buf)) != -1) zos.write(buf, 0, n);
+                    while ((n = in.read(buf)) != -1) {
+                        zos.write(buf, 0, n);
+                        Governor.checkpoint();
+                    }
                 } finally {
                     closeQuietly(in);
                     zos.closeEntry();
                 }
+                if (index != null) {
+                    // closeEntry 後 ZipOutputStream 已回填 size / csize / crc
+                    ZipIndex.Entry e = new ZipIndex.Entry();
+                    e.tester = tester;
+                    e.name = rel;
+                    if (tester == null) {
+                        int slash = rel.indexOf('/');
+                        e.tester = slash > 0 ? rel.substring(0, slash) : "";
+                        e.name = slash > 0 ? rel.substring(slash + 1) : rel;
+                    }
+                    e.size = ze.getSize();
+                    e.csize = ze.getCompressedSize();
+                    e.mtime = mtime;
+                    e.crc = ze.getCrc();
+                    e.method = ze.getMethod();
+                    e.offset = offset;
+                    index.add(e.toRow());
+                }
+            }
+        }
+    }
+
+    // 計算實際寫出的位元組數（求 entry offset 用）
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) { super(out); }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+
+    // ===== FTP 目的地 =====
+    // 主要目的地沿用 ftp.*；ftp.mirrors=a,b 時，另讀 ftp.mirror.<名稱>.<欄位>，未設定的欄位沿用 ftp.*
+    private static final class FtpTarget {
+        String name;
+        String host;
+        int port;
+        String username;
+        String password;
+        String remoteDir;
+        boolean passive;
+        int connectTimeout;
+        int dataTimeout;
+
+        // 各目的地獨立記錄結果（由上傳執行緒寫入）
+        final List<String> succeeded = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        // 鏡像補傳：上次漏接的檔案（本地檔, 遠端路徑）；本次結束時仍未送達者放進 behind
+        List<String[]> catchUp = new ArrayList<String[]>();
+        final List<String[]> behind = Collections.synchronizedList(new ArrayList<String[]>());
+        volatile long bytesSent;
+        volatile boolean dead;
+
+        static List<FtpTarget> fromProperties(Properties p, String hostname, String remoteDateDir) {
+            List<FtpTarget> out = new ArrayList<FtpTarget>();
+            out.add(load(p, "primary", "ftp.", null, hostname, remoteDateDir));
+            List<String> names = splitCsv(p.getProperty("ftp.mirrors", ""));
+            for (int i = 0; i < names.size(); i++) {
+                String n = names.get(i).trim();
+                if (n.length() == 0) continue;
+                out.add(load(p, n, "ftp.mirror." + n + ".", out.get(0), hostname, remoteDateDir));
+            }
+            return out;
+        }
+
+        private static FtpTarget load(Properties p, String name, String prefix, FtpTarget def,
+                                      String hostname, String remoteDateDir) {
+            FtpTarget t = new FtpTarget();
+            t.name = name;
+            t.host = p.getProperty(prefix + "host", def != null ? def.host : "");
+            t.port = parseInt(p.getProperty(prefix + "port", def != null ? String.valueOf(def.port) : "21"), 21);
+            t.username = p.getProperty(prefix + "username", def != null ? def.username : "");
+            t.password = p.getProperty(prefix + "password", def != null ? def.password : "");
+            t.passive = Boolean.parseBoolean(p.getProperty(prefix + "passive", def != null ? String.valueOf(def.passive) : "true"));
+            t.connectTimeout = parseInt(p.getProperty(prefix + "connect.timeout.ms", def != null ? String.valueOf(def.connectTimeout) : "15000"), 15000);
+            t.dataTimeout = parseInt(p.getProperty(prefix + "data.timeout.ms", def != null ? String.valueOf(def.dataTimeout) : "30000"), 30000);
+            String base = replaceHostnameVars(p.getProperty(prefix + "remote.base", p.getProperty("ftp.remote.base", "/upload")), hostname); // 支援 {hostname}
+            t.remoteDir = remoteDateDir != null ? base + "/" + remoteDateDir : base;
+            return t;
+        }
+
+        org.apache.commons.net.ftp.FTPClient connect() throws IOException {
+            org.apache.commons.net.ftp.FTPClient ftp = login();
+            try {
+                ensureRemoteDirectory(ftp, remoteDir);
+                Log.info("[" + name + "] 遠端上傳目錄: " + remoteDir);
+                return ftp;
+            } catch (IOException e) {
+                disconnectQuietly(ftp);
+                throw e;
+            }
+        }
+
+        // 連線 + 登入 + 二進位模式（不建立遠端目錄）
+        org.apache.commons.net.ftp.FTPClient login() throws IOException {
+            org.apache.commons.net.ftp.FTPClient ftp = new org.apache.commons.net.ftp.FTPClient();
+            try {
+                ftp.setConnectTimeout(connectTimeout);
+                ftp.setDefaultTimeout(connectTimeout);
+                ftp.setDataTimeout(dataTimeout);
+                ftp.setControlEncoding("UTF-8");
+
+                Log.info("[" + name + "] 連線 FTP: " + host + ":" + port);
+                ftp.connect(host, port);
+                int reply = ftp.getReplyCode();
+                if (!org.apache.commons.net.ftp.FTPReply.isPositiveCompletion(reply)) {
+                    throw new IOException("FTP 連線被拒絕, replyCode=" + reply);
+                }
+                if (!ftp.login(username, password)) {
+                    throw new IOException("FTP 登入失敗，請檢查帳密。");
+                }
+                if (passive) ftp.enterLocalPassiveMode();
+                ftp.setFileType(org.apache.commons.net.ftp.FTP.BINARY_FILE_TYPE);
+                ftp.setBufferSize(8192);
+                return ftp;
+            } catch (IOException e) {
+                disconnectQuietly(ftp);
+                throw e;
+            }
+        }
+    }
+
+    private static void disconnectQuietly(org.apache.commons.net.ftp.FTPClient ftp) {
+        if (ftp != null && ftp.isConnected()) {
+            try { ftp.logout(); } catch (Exception ignore) {}
+            try { ftp.disconnect(); } catch (Exception ignore) {}
+        }
+    }
+
+    // ===== 單次讀取、多目的地分送 =====
+    // 主執行緒依序讀每顆 zip，切成 chunk 丟進各目的地的有界佇列；每個目的地一條執行緒各自 storeFile。
+    // 某目的地佇列滿超過 stall.ms（過慢）就與分送脫鉤，剩下的部分由它自己從本地檔接續讀取，不拖慢其他目的地；
+    // 連線失敗的目的地直接放棄後續檔案。各目的地的成功/失敗分開記錄。
+    private static final class FanoutUploader {
+        private static final byte[] EOF = new byte[0];
+        private static final long KEEPALIVE_MS = 30000;
+
+        final List<FtpTarget> targets;
+        final int chunkSize;
+        final int bufferChunks;
+        final long stallMs;
+        final Semaphore transfers; // 同時進行的 storeFile 數（governor.max.threads），依請求順序放行
+
+        FanoutUploader(List<FtpTarget> targets, int chunkSize, int bufferChunks, long stallMs) {
+            this.targets = targets;
+            this.chunkSize = Math.max(4096, chunkSize);
+            this.bufferChunks = Math.max(1, bufferChunks);
+            this.stallMs = Math.max(0, stallMs);
+            this.transfers = new Semaphore(Governor.capThreads(Math.max(1, targets.size())), true);
+        }
+
+        // 回傳主要目的地（targets 第 0 個）是否全部成功；鏡像結果見各 FtpTarget
+        boolean upload(final List<File> zips) {
+            final List<List<Branch>> perTarget = new ArrayList<List<Branch>>();
+            for (int t = 0; t < targets.size(); t++) {
+                List<Branch> list = new ArrayList<Branch>();
+                for (int i = 0; i < zips.size(); i++) list.add(new Branch(targets.get(t).name, zips.get(i), bufferChunks));
+                perTarget.add(list);
+            }
+
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int t = 0; t < targets.size(); t++) {
+                final FtpTarget target = targets.get(t);
+                final List<Branch> branches = perTarget.get(t);
+                Thread th = new Thread(new Runnable() {
+                    public void run() { uploadAll(target, zips, branches); }
+                }, "upload-" + target.name);
+                th.start();
+                workers.add(th);
+            }
+
+            // 讀取端：每顆 zip 讀一次。送入一律不阻塞；上一顆還沒送完的分支放在 lingering 繼續送
+            List<Branch> lingering = new ArrayList<Branch>();
+            for (int i = 0; i < zips.size(); i++) {
+                File zf = zips.get(i);
+                List<Branch> live = new ArrayList<Branch>();
+                for (int t = 0; t < targets.size(); t++) live.add(perTarget.get(t).get(i));
+
+                // 節流只在兩顆 zip 之間：上一顆還沒送完的分支先改讀本地檔，各目的地要等這裡放行才開始傳下一顆，
+                // 暫停期間不會有資料連線卡在半途而逾時
+                if (Governor.active()) {
+                    for (int k = 0; k < lingering.size(); k++) lingering.get(k).detach();
+                    lingering.clear();
+                }
+                Governor.betweenTasks();
+                // 已連不上的目的地不送（其上傳執行緒會直接放棄這顆）；全部都連不上就不必讀這顆
+                boolean anyTarget = false;
+                for (int t = 0; t < live.size(); t++) {
+                    if (targets.get(t).dead) live.get(t).detach();
+                    else anyTarget = true;
+                    live.get(t).started.countDown();
+                }
+                if (!anyTarget) {
+                    Log.debug("所有目的地皆無法連線，略過讀取: " + zf.getName());
+                    continue;
+                }
+
+                BufferedInputStream in = null;
+                try {
+                    in = new BufferedInputStream(new FileInputStream(zf), chunkSize);
+                    boolean fed = true;
+                    while (true) {
+                        byte[] chunk = new byte[chunkSize];
+                        int n = readFully(in, chunk);
+                        if (n <= 0) break;
+                        if (n < chunk.length) chunk = Arrays.copyOf(chunk, n);
+                        feedAll(live, chunk);
+                        fed = pump(live, lingering, false);
+                        if (!fed) {
+                            // 已沒有分支由讀取端餵資料：剩下的各自讀檔，不必再讀
+                            Log.debug("所有目的地已改為自行讀檔，停止分送: " + zf.getName());
+                            break;
+                        }
+                        if (n < chunkSize) break;
+                    }
+                    if (fed) {
+                        feedAll(live, EOF);
+                        pump(live, lingering, false);
+                    }
+                } catch (IOException e) {
+                    // 本地讀取失敗：交給各目的地自行讀檔（通常也會失敗並記錄）
+                    Log.error("讀取壓縮檔失敗: " + zf.getAbsolutePath() + "，原因: " + e.getMessage());
+                    for (int t = 0; t < live.size(); t++) live.get(t).detach();
+                } finally {
+                    closeQuietly(in);
+                }
+                for (int t = 0; t < live.size(); t++) {
+                    if (!live.get(t).overflow.isEmpty()) lingering.add(live.get(t));
+                }
+            }
+            pump(new ArrayList<Branch>(), lingering, true);
+
+            for (int t = 0; t < workers.size(); t++) {
+                try {
+                    workers.get(t).join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            for (int t = 0; t < targets.size(); t++) {
+                FtpTarget target = targets.get(t);
+                String msg = "[" + target.name + "] 成功 " + target.succeeded.size() + "/" + zips.size()
+                        + "，已送出 " + target.bytesSent + " bytes";
+                if (target.failed.isEmpty()) {
+                    Log.info(msg);
+                } else {
+                    Log.error(msg + "，失敗: " + target.failed);
+                }
+            }
+            return targets.get(0).failed.isEmpty();
+        }
+
+        private static void feedAll(List<Branch> live, byte[] chunk) {
+            for (int t = 0; t < live.size(); t++) {
+                Branch br = live.get(t);
+                if (!br.abandoned && !br.detached) br.overflow.add(chunk);
+            }
+        }
+
+        // 把各分支待送的 chunk 以非阻塞 offer 推進佇列；各分支各自計算卡住的時間，
+        // 卡住超過 stall.ms 或積壓超過 buffer.chunks 即脫鉤，改由它自己讀本地檔。
+        // untilDrained=false：只要目前這顆 zip 有任一分支還能收就返回（最快的目的地決定讀取速度，健康的目的地不必等慢的）；
+        // untilDrained=true ：等 lingering 全部送完或脫鉤（全部 zip 讀完後呼叫）。
+        // 回傳 live 中是否還有分支由讀取端餵資料
+        private boolean pump(List<Branch> live, List<Branch> lingering, boolean untilDrained) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                for (Iterator<Branch> it = lingering.iterator(); it.hasNext(); ) {
+                    Branch br = it.next();
+                    if (!service(br, now) || br.overflow.isEmpty()) it.remove();
+                }
+                boolean anyAlive = false;
+                boolean room = false;
+                for (int t = 0; t < live.size(); t++) {
+                    Branch br = live.get(t);
+                    if (!service(br, now)) continue;
+                    anyAlive = true;
+                    if (br.overflow.isEmpty()) room = true;
+                }
+                if (untilDrained ? lingering.isEmpty() : (room || !anyAlive)) return anyAlive;
+                try {
+                    Thread.sleep(2); // 所有目的地都滿：等最快的那個消化
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return anyAlive;
+                }
+            }
+        }
+
+        // 回傳分支是否仍由讀取端餵資料
+        private boolean service(Branch br, long now) {
+            if (br.abandoned || br.detached) {
+                br.overflow.clear();
+                return false;
+            }
+            while (!br.overflow.isEmpty() && br.queue.offer(br.overflow.peek())) br.overflow.poll();
+            if (br.overflow.isEmpty()) {
+                br.stalledSince = 0;
+                return true;
+            }
+            if (br.stalledSince == 0) br.stalledSince = now;
+            if (now - br.stalledSince >= stallMs || br.overflow.size() > bufferChunks) {
+                br.detach();
+                Log.warn("[" + br.targetName + "] 傳送過慢，改由該目的地自行讀取本地檔: " + br.file.getName());
+                return false;
+            }
+            return true;
+        }
+
+        private void uploadAll(FtpTarget target, List<File> zips, List<Branch> branches) {
+            org.apache.commons.net.ftp.FTPClient ftp = null;
+
+            // 先依原順序補傳上次漏接的檔案（此時本次的分送佇列若塞滿，會改由本地檔接續，不影響其他目的地）
+            Set<String> catchUpFailed = new HashSet<String>();
+            for (int i = 0; i < target.catchUp.size(); i++) {
+                String[] e = target.catchUp.get(i);
+                File local = new File(e[0]);
+                if (!local.isFile()) {
+                    Log.error("[" + target.name + "] 補傳來源已不存在，無法補傳: " + e[0] + " -> " + e[1]);
+                    continue;
+                }
+                if (target.dead || catchUpFailed.contains(zipOfIndex(e[0]))) {
+                    target.behind.add(e);
+                    catchUpFailed.add(e[0]);
+                    continue;
+                }
+                BufferedInputStream in = null;
+                boolean permit = false;
+                try {
+                    permit = acquireTransfer(ftp);
+                    if (ftp == null) ftp = target.connect();
+                    int slash = e[1].lastIndexOf('/');
+                    if (slash > 0) ensureRemoteDirectory(ftp, e[1].substring(0, slash));
+                    Log.info("[" + target.name + "] 補傳: " + e[1]);
+                    in = new BufferedInputStream(new FileInputStream(local));
+                    if (!ftp.storeFile(e[1], in)) throw new IOException("storeFile 失敗: " + ftp.getReplyString());
+                    target.bytesSent += local.length();
+                } catch (Exception ex) {
+                    target.behind.add(e);
+                    catchUpFailed.add(e[0]);
+                    Log.error("[" + target.name + "] 補傳失敗: " + e[1] + "，原因: " + ex.getMessage());
+                    ftp = dropConnection(target, ftp);
+                } finally {
+                    closeQuietly(in);
+                    if (permit) transfers.release();
+                }
+            }
+
+            for (int i = 0; i < zips.size(); i++) {
+                File zf = zips.get(i);
+                Branch br = branches.get(i);
+                String remotePath = target.remoteDir + "/" + zf.getName();
+                if (target.dead || target.failed.contains(zipOfIndex(zf.getName()))) {
+                    // 連不上，或這是 zip 沒傳成功的 <zip>.idx：遠端不能有指向不完整 zip 的索引，一併留待補傳
+                    if (!target.dead) Log.warn("[" + target.name + "] 壓縮檔未傳成功，索引一併延後: " + zf.getName());
+                    br.close();
+                    target.failed.add(zf.getName());
+                    target.behind.add(new String[]{ zf.getAbsolutePath(), remotePath });
+                    continue;
+                }
+                boolean permit = false;
+                try {
+                    awaitStart(ftp, br);
+                    permit = acquireTransfer(ftp);
+                    if (ftp == null) ftp = target.connect();
+                    Log.info("[" + target.name + "] 上傳: " + zf.getName());
+                    boolean ok = ftp.storeFile(remotePath, br);
+                    if (!ok) throw new IOException("storeFile 失敗: " + ftp.getReplyString());
+                    target.bytesSent += br.pos;
+                    target.succeeded.add(zf.getName());
+                } catch (Exception e) {
+                    target.failed.add(zf.getName());
+                    target.behind.add(new String[]{ zf.getAbsolutePath(), remotePath });
+                    Log.error("[" + target.name + "] FTP 發生錯誤: " + zf.getName() + "，原因: " + e.getMessage(), e);
+                    ftp = dropConnection(target, ftp);
+                } finally {
+                    br.close();
+                    if (permit) transfers.release();
+                }
+            }
+            disconnectQuietly(ftp);
+        }
+
+        // <zip>.idx 對應的 zip 名稱/路徑；不是索引檔回傳 null
+        private static String zipOfIndex(String name) {
+            return name.endsWith(".zip.idx") ? name.substring(0, name.length() - 4) : null;
+        }
+
+        // 等讀取端放行這顆（節流暫停可能很久）；已連線就定期送 NOOP，避免控制連線閒置被伺服器切斷
+        private static void awaitStart(org.apache.commons.net.ftp.FTPClient ftp, Branch br) throws IOException {
+            try {
+                while (!br.started.await(KEEPALIVE_MS, TimeUnit.MILLISECONDS)) {
+                    if (ftp != null) ftp.sendNoOp();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("upload interrupted");
+            }
+        }
+
+        // 取得傳輸名額；等待期間同樣送 NOOP。排隊中的分支佇列滿了會脫鉤改讀本地檔，不會卡住讀取端
+        private boolean acquireTransfer(org.apache.commons.net.ftp.FTPClient ftp) throws IOException {
+            try {
+                while (!transfers.tryAcquire(KEEPALIVE_MS, TimeUnit.MILLISECONDS)) {
+                    if (ftp != null) ftp.sendNoOp();
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("upload interrupted");
+            }
+        }
+
+        // 失敗後處理連線：連不上就標記此目的地不再嘗試，否則斷線待下一顆重連；一律回傳 null
+        private static org.apache.commons.net.ftp.FTPClient dropConnection(FtpTarget target, org.apache.commons.net.ftp.FTPClient ftp) {
+            if (ftp == null) {
+                target.dead = true;
+            } else {
+                disconnectQuietly(ftp);
+            }
+            return null;
+        }
+
+        private static int readFully(InputStream in, byte[] buf) throws IOException {
+            int total = 0;
+            while (total < buf.length) {
+                int n = in.read(buf, total, buf.length - total);
+                if (n < 0) break;
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    // ===== 鏡像補傳清單 =====
+    // 每行：目的地名稱\t本地 zip\t遠端路徑。鏡像漏接的檔案記在這裡，下次由該目的地的上傳執行緒先補傳，成功才移除。
+    // 設定中已移除的目的地，其紀錄原樣保留。
+    private static final class MirrorBacklog {
+        final File file;
+        private final Map<String, List<String[]>> entries = new LinkedHashMap<String, List<String[]>>();
+
+        private MirrorBacklog(File file) { this.file = file; }
+
+        static MirrorBacklog load(File file) {
+            MirrorBacklog b = new MirrorBacklog(file);
+            if (!file.isFile()) return b;
+            BufferedReader r = null;
+            try {
+                r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                String line;
+                while ((line = r.readLine()) != null) {
+                    String[] c = line.split("\t", -1);
+                    if (line.startsWith("#") || c.length < 3) continue;
+                    b.get(c[0]).add(new String[]{ c[1], c[2] });
+                }
+            } catch (IOException e) {
+                Log.warn("讀取補傳清單失敗: " + e.getMessage());
+            } finally {
+                closeQuietly(r);
+            }
+            return b;
+        }
+
+        List<String[]> get(String name) {
+            List<String[]> list = entries.get(name);
+            if (list == null) { list = new ArrayList<String[]>(); entries.put(name, list); }
+            return list;
+        }
+
+        void set(String name, List<String[]> list) {
+            entries.put(name, list);
+        }
+
+        void save() {
+            boolean empty = true;
+            for (List<String[]> list : entries.values()) if (!list.isEmpty()) empty = false;
+            if (empty) {
+                if (file.exists()) file.delete();
+                return;
+            }
+            ensureDir(file.getAbsoluteFile().getParentFile());
+            File tmp = new File(file.getAbsolutePath() + ".tmp");
+            Writer w = null;
+            try {
+                w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+                w.write("# mirror\tlocal\tremote\n");
+                for (Map.Entry<String, List<String[]>> en : entries.entrySet()) {
+                    for (int i = 0; i < en.getValue().size(); i++) {
+                        String[] e = en.getValue().get(i);
+                        w.write(en.getKey() + "\t" + e[0] + "\t" + e[1] + "\n");
+                    }
+                }
+                w.close();
+                w = null;
+                if (file.exists() && !file.delete()) throw new IOException("無法覆寫 " + file.getAbsolutePath());
+                if (!tmp.renameTo(file)) throw new IOException("無法寫入 " + file.getAbsolutePath());
+            } catch (IOException e) {
+                Log.error("寫入補傳清單失敗: " + e.getMessage());
+            } finally {
+                closeQuietly(w);
             }
         }
     }
 
+    // 單一目的地、單一檔案的輸入端：先吃分送佇列，脫鉤後從本地檔目前位置接續
+    private static final class Branch extends InputStream {
+        final String targetName;
+        final File file;
+        final BlockingQueue<byte[]> queue;
+        volatile boolean detached;  // 讀取端不再送資料，剩餘部分自行讀檔
+        volatile boolean abandoned; // 目的地放棄此檔，讀取端略過
+
+        final CountDownLatch started = new CountDownLatch(1); // 讀取端開始送這顆時放行
+
+        // 僅讀取端使用：佇列滿時暫存待送的 chunk，以及開始卡住的時間
+        final ArrayDeque<byte[]> overflow = new ArrayDeque<byte[]>();
+        long stalledSince;
+
+        private byte[] cur;
+        private int idx;
+        private long pos;
+        private InputStream disk;
+        private boolean eof;
+
+        Branch(String targetName, File file, int capacity) {
+            this.targetName = targetName;
+            this.file = file;
+            this.queue = new ArrayBlockingQueue<byte[]>(capacity);
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n <= 0 ? -1 : (one[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (eof) return -1;
+            if (disk != null) {
+                int n = disk.read(b, off, len);
+                if (n > 0) pos += n;
+                return n;
+            }
+            while (cur == null || idx >= cur.length) {
+                byte[] c;
+                try {
+                    c = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("upload interrupted");
+                }
+                if (c == null) {
+                    if (!detached) continue;
+                    c = queue.poll(); // 脫鉤前已入列的資料要先吃完
+                    if (c == null) {
+                        disk = new BufferedInputStream(new FileInputStream(file));
+                        long skipped = 0;
+                        while (skipped < pos) {
+                            long k = disk.skip(pos - skipped);
+                            if (k <= 0) throw new IOException("無法定位本地檔: " + file.getAbsolutePath());
+                            skipped += k;
+                        }
+                        return read(b, off, len);
+                    }
+                }
+                if (c == FanoutUploader.EOF) {
+                    eof = true;
+                    return -1;
+                }
+                cur = c;
+                idx = 0;
+            }
+            int n = Math.min(len, cur.length - idx);
+            System.arraycopy(cur, idx, b, off, n);
+            idx += n;
+            pos += n;
+            return n;
+        }
+
+        // 讀取端呼叫：不再送資料（已入列的仍會被讀完，之後從本地檔接續）
+        void detach() {
+            overflow.clear();
+            detached = true;
+        }
+
+        public void close() {
+            abandoned = true;
+            queue.clear();
+            closeQuietly(disk);
+            disk = null;
+        }
+    }
 
     // 遞迴刪除資料夾（for staging.cleanup=true）
     private static void deleteDirectoryRecursive(File f) {
@@ -610,6 +1689,938 @@ public class Main {
     }
 
 
+    // ===== 收集端（--collect / --query / --fetch）=====
+    // 在 NAS 端執行：定期掃描落地目錄 {landing}/{hostname}/{date}/*.zip（與 ftp.remote.base 結構相同），
+    // 以執行緒池平行驗證每顆新進/有變動的 zip：旁邊有上傳端的 <zip>.idx 且與 zip 相符就直接採用，
+    // 否則解析 central directory。每顆 zip 寫一份索引到 {catalog}/{date}/{hostname}__{zip 檔名}.tsv，欄位：
+    //   host + <zip>.idx 的索引列（tester path size csize mtime crc32 method offset）+ archive
+    // offset 為 local header 位置，可直接 seek/REST 讀出單一檔案，不必下載整顆 zip。
+    // 網路磁碟上 WatchService 不可靠且不支援遞迴，故採輪詢。
+    private static final class Collector {
+        static final String CATALOG_HEADER = "# host\t" + ZipIndex.ROW_COLUMNS + "\tarchive";
+        private static final Pattern ARCHIVE_NAME = Pattern.compile("^(.+)_(\\d{8})\\.zip$");
+
+        final File landing;
+        final File catalog;
+        final int threads;
+        final long pollMs;
+        final long settleMs;
+        final boolean once;
+        final boolean verifyCrc;
+        final TimeZone tz;
+
+        // zip 路徑 → 已處理（索引完成或已標記壞檔）時的 sourceStamp。第一輪由 catalog 填入，
+        // 之後每輪只 stat zip，stamp 沒變就不再開 catalog；常駐期間若手動刪除索引，需重啟才會重建
+        private final Map<String, String> seen = new ConcurrentHashMap<String, String>();
+
+        Collector(Properties p, TimeZone tz) {
+            this.landing = new File(p.getProperty("collector.landing.dir", "landing"));
+            this.catalog = new File(p.getProperty("collector.catalog.dir", "catalog"));
+            this.threads = Math.max(1, parseInt(p.getProperty("collector.threads", "4"), 4));
+            this.pollMs = Math.max(1, parseInt(p.getProperty("collector.poll.interval.sec", "60"), 60)) * 1000L;
+            this.settleMs = Math.max(0, parseInt(p.getProperty("collector.settle.sec", "120"), 120)) * 1000L;
+            this.once = Boolean.parseBoolean(p.getProperty("collector.once", "false"));
+            this.verifyCrc = Boolean.parseBoolean(p.getProperty("collector.verify.crc", "false"));
+            this.tz = tz;
+        }
+
+        void run() {
+            if (!landing.isDirectory()) {
+                Log.error("collector.landing.dir 不存在或不是資料夾: " + landing.getAbsolutePath());
+                return;
+            }
+            ensureDir(catalog);
+            Log.info("收集端啟動: landing=" + landing.getAbsolutePath() + ", catalog=" + catalog.getAbsolutePath()
+                    + ", threads=" + threads + (once ? ", 單次掃描" : ", 每 " + (pollMs / 1000) + " 秒掃描"));
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                while (true) {
+                    scanOnce(pool);
+                    if (once) break;
+                    try {
+                        Thread.sleep(pollMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private void scanOnce(ExecutorService pool) {
+            List<File> zips = new ArrayList<File>();
+            File[] hosts = landing.listFiles();
+            if (hosts == null) return;
+            for (int i = 0; i < hosts.length; i++) {
+                if (!hosts[i].isDirectory()) continue;
+                File[] kids = hosts[i].listFiles();
+                if (kids == null) continue;
+                for (int j = 0; j < kids.length; j++) {
+                    File k = kids[j];
+                    if (k.isDirectory()) {
+                        File[] files = k.listFiles();
+                        if (files == null) continue;
+                        for (int m = 0; m < files.length; m++) {
+                            if (files[m].isFile() && files[m].getName().endsWith(".zip")) zips.add(files[m]);
+                        }
+                    } else if (k.getName().endsWith(".zip")) {
+                        zips.add(k); // remote.append.date.dir=false 的情況
+                    }
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            Set<String> present = new HashSet<String>();
+            List<Future<Boolean>> jobs = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < zips.size(); i++) {
+                final File zf = zips.get(i);
+                final String key = zf.getAbsolutePath();
+                final String stamp = sourceStamp(zf);
+                present.add(key);
+                if (stamp.equals(seen.get(key))) continue;
+                if (now - zf.lastModified() < settleMs) continue; // 可能仍在上傳中
+                final File idx = indexFileFor(zf);
+                if (idx == null || isUpToDate(idx, zf) || isUpToDate(badMarkerFor(idx), zf)) {
+                    seen.put(key, stamp);
+                    continue;
+                }
+                jobs.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        boolean ok = indexArchive(zf, idx);
+                        if (ok || isUpToDate(badMarkerFor(idx), zf)) seen.put(key, stamp);
+                        return ok;
+                    }
+                }));
+            }
+            seen.keySet().retainAll(present); // 已移走的 zip 不再保留
+            if (jobs.isEmpty()) return;
+
+            int ok = 0;
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    if (jobs.get(i).get()) ok++;
+                } catch (Exception e) {
+                    Log.error("索引工作失敗: " + e.getMessage(), e);
+                }
+            }
+            Log.info("本輪收集: 新進/變動 " + jobs.size() + " 顆，成功 " + ok + " 顆，失敗 " + (jobs.size() - ok) + " 顆");
+        }
+
+        // {catalog}/{date}/{host}__{name}.tsv；date 取自檔名 _yyyyMMdd.zip
+        private File indexFileFor(File zf) {
+            java.util.regex.Matcher m = ARCHIVE_NAME.matcher(zf.getName());
+            if (!m.matches()) {
+                Log.debug("檔名不符 {name}_{yyyyMMdd}.zip，略過: " + zf.getAbsolutePath());
+                return null;
+            }
+            String host = hostOf(zf);
+            return new File(new File(catalog, m.group(2)), host + "__" + zf.getName() + ".tsv");
+        }
+
+        private String hostOf(File zf) {
+            File parent = zf.getParentFile();
+            if (parent.getParentFile() != null && parent.getParentFile().getAbsoluteFile().equals(landing.getAbsoluteFile())) {
+                return parent.getName();
+            }
+            return parent.getParentFile().getName();
+        }
+
+        private static File badMarkerFor(File idx) {
+            return new File(idx.getParentFile(), idx.getName() + ".bad");
+        }
+
+        // 索引檔第一行記錄來源 zip 的 size/mtime，相同即已處理過
+        private static boolean isUpToDate(File idx, File zf) {
+            if (!idx.isFile()) return false;
+            BufferedReader r = null;
+            try {
+                r = new BufferedReader(new InputStreamReader(new FileInputStream(idx), "UTF-8"));
+                String first = r.readLine();
+                return first != null && first.equals(sourceStamp(zf));
+            } catch (IOException e) {
+                return false;
+            } finally {
+                closeQuietly(r);
+            }
+        }
+
+        private static String sourceStamp(File zf) {
+            return "#source\tsize=" + zf.length() + "\tmtime=" + zf.lastModified();
+        }
+
+        private boolean indexArchive(File zf, File idx) {
+            String host = hostOf(zf);
+            String rel = toRelativePath(landing.getAbsolutePath(), zf.getAbsolutePath()).replace('\\', '/');
+            java.util.regex.Matcher m = ARCHIVE_NAME.matcher(zf.getName());
+            String prefix = m.matches() ? m.group(1) : "";
+            boolean merged = prefix.equalsIgnoreCase(host); // {hostname}_{date}.zip：第一層資料夾為 tester
+            long t0 = System.currentTimeMillis();
+
+            List<ZipIndex.Entry> entries = null;
+            String from = ".idx";
+            File uploaded = new File(zf.getParentFile(), zf.getName() + ".idx");
+            if (uploaded.isFile()) {
+                try {
+                    entries = ZipIndex.readIndexFile(zf, uploaded);
+                } catch (IOException e) {
+                    Log.warn("上傳的索引不可用，改掃 central directory: " + uploaded.getAbsolutePath() + "，原因: " + e.getMessage());
+                }
+            }
+            try {
+                if (entries == null) {
+                    from = "central directory";
+                    entries = new ArrayList<ZipIndex.Entry>();
+                    List<ZipIndex.Entry> all = ZipIndex.read(zf, tz);
+                    for (int i = 0; i < all.size(); i++) {
+                        ZipIndex.Entry e = all.get(i);
+                        if (e.name.endsWith("/")) continue;
+                        e.tester = prefix;
+                        int slash = e.name.indexOf('/');
+                        if (merged && slash > 0) {
+                            e.tester = e.name.substring(0, slash);
+                            e.name = e.name.substring(slash + 1);
+                        }
+                        entries.add(e);
+                    }
+                }
+                if (verifyCrc) ZipIndex.verifyCrc(zf, entries);
+            } catch (IOException e) {
+                Log.error("驗證失敗（壞檔或未傳完）: " + zf.getAbsolutePath() + "，原因: " + e.getMessage());
+                writeLines(badMarkerFor(idx), sourceStamp(zf), Collections.singletonList("# " + e.getMessage()));
+                return false;
+            }
+
+            List<String> rows = new ArrayList<String>();
+            rows.add(CATALOG_HEADER);
+            for (int i = 0; i < entries.size(); i++) {
+                rows.add(host + "\t" + entries.get(i).toRow() + "\t" + rel);
+            }
+            if (!writeLines(idx, sourceStamp(zf), rows)) return false;
+            badMarkerFor(idx).delete();
+            Log.info("已索引: " + rel + "（" + (rows.size() - 1) + " 個檔案，來源 " + from + "，"
+                    + (System.currentTimeMillis() - t0) + " ms）");
+            return true;
+        }
+
+        // 先寫暫存檔再換名，查詢端不會讀到半份索引
+        private static boolean writeLines(File target, String stamp, List<String> lines) {
+            ensureDir(target.getParentFile());
+            File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+            Writer w = null;
+            try {
+                w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+                w.write(stamp);
+                w.write("\n");
+                for (int i = 0; i < lines.size(); i++) {
+                    w.write(lines.get(i));
+                    w.write("\n");
+                }
+                w.close();
+                w = null;
+                if (target.exists() && !target.delete()) throw new IOException("無法覆寫 " + target.getAbsolutePath());
+                if (!tmp.renameTo(target)) throw new IOException("無法寫入 " + target.getAbsolutePath());
+                return true;
+            } catch (IOException e) {
+                Log.error("寫入索引失敗: " + target.getAbsolutePath() + "，原因: " + e.getMessage());
+                tmp.delete();
+                return false;
+            } finally {
+                closeQuietly(w);
+            }
+        }
+
+        // --query <date> [host] [tester] [pathRegex]：列出符合的索引列（空字串或 * 表示不限）
+        List<String[]> query(String date, String host, String tester, String pathRegex) {
+            List<String[]> out = new ArrayList<String[]>();
+            File[] files = new File(catalog, date).listFiles();
+            if (files == null) return out;
+            Arrays.sort(files);
+            Pattern pathPattern = isWildcard(pathRegex) ? null : Pattern.compile(pathRegex);
+            for (int i = 0; i < files.length; i++) {
+                if (!files[i].getName().endsWith(".tsv")) continue;
+                BufferedReader r = null;
+                try {
+                    r = new BufferedReader(new InputStreamReader(new FileInputStream(files[i]), "UTF-8"));
+                    String line;
+                    while ((line = r.readLine()) != null) {
+                        if (line.startsWith("#")) continue;
+                        String[] c = line.split("\t", -1);
+                        if (c.length < 10) continue;
+                        if (!isWildcard(host) && !c[0].equalsIgnoreCase(host)) continue;
+                        if (!isWildcard(tester) && !c[1].equalsIgnoreCase(tester)) continue;
+                        if (pathPattern != null && !pathPattern.matcher(c[2]).find()) continue;
+                        out.add(c);
+                    }
+                } catch (IOException e) {
+                    Log.warn("讀取索引失敗: " + files[i].getAbsolutePath() + "，原因: " + e.getMessage());
+                } finally {
+                    closeQuietly(r);
+                }
+            }
+            return out;
+        }
+
+        // --fetch <date> <host> <tester> <path> <dest>：依索引 offset 只讀出單一檔案
+        boolean fetch(String date, String host, String tester, String path, File dest) {
+            List<String[]> rows = query(date, host, tester, "^" + Pattern.quote(path) + "$");
+            if (rows.isEmpty()) {
+                Log.error("索引中找不到: " + date + " " + host + " " + tester + " " + path);
+                return false;
+            }
+            String[] c = rows.get(rows.size() - 1);
+            ZipIndex.Entry e = ZipIndex.Entry.fromRow(c, 1);
+            File archive = new File(landing, c[9]);
+            RandomAccessFile raf = null;
+            OutputStream out = null;
+            try {
+                raf = new RandomAccessFile(archive, "r");
+                ensureDir(dest.getAbsoluteFile().getParentFile());
+                out = new BufferedOutputStream(new FileOutputStream(dest));
+                ZipIndex.extract(raf, e, out);
+                out.close();
+                out = null;
+                dest.setLastModified(e.mtime);
+                Log.info("已取出: " + archive.getName() + " @" + e.offset + " -> " + dest.getAbsolutePath() + " (" + e.size + " bytes)");
+                return true;
+            } catch (IOException ex) {
+                Log.error("取出失敗: " + archive.getAbsolutePath() + " @" + e.offset + "，原因: " + ex.getMessage());
+                return false;
+            } finally {
+                closeQuietly(out);
+                closeQuietly(raf);
+            }
+        }
+
+        private static boolean isWildcard(String s) {
+            return s == null || s.length() == 0 || "*".equals(s);
+        }
+    }
+
+    // ===== ZIP central directory 解析與單檔擷取（支援 ZIP64）=====
+    private static final class ZipIndex {
+        // 索引列欄位：上傳端 <zip>.idx 即此 8 欄；收集端 catalog 在前面加 host、後面加 archive
+        static final String ROW_COLUMNS = "tester\tpath\tsize\tcsize\tmtime\tcrc32\tmethod\toffset";
+        static final int ROW_WIDTH = 8;
+
+        static final class Entry {
+            String tester; // 只有索引列有；central directory 讀出時為 null
+            String name;   // 索引列中為去掉 tester 資料夾後的 path
+            long size;
+            long csize;
+            long crc;
+            int method;
+            long mtime;
+            long offset; // local header 位置
+
+            // c[at] 起為 ROW_COLUMNS 各欄（.idx 為 0，catalog 為 1）
+            static Entry fromRow(String[] c, int at) {
+                Entry e = new Entry();
+                e.tester = c[at];
+                e.name = c[at + 1];
+                e.size = Long.parseLong(c[at + 2]);
+                e.csize = Long.parseLong(c[at + 3]);
+                e.mtime = Long.parseLong(c[at + 4]);
+                e.crc = Long.parseLong(c[at + 5], 16);
+                e.method = Integer.parseInt(c[at + 6]);
+                e.offset = Long.parseLong(c[at + 7]);
+                return e;
+            }
+
+            String toRow() {
+                return tester + "\t" + name + "\t" + size + "\t" + csize + "\t" + mtime
+                        + "\t" + Long.toHexString(crc) + "\t" + method + "\t" + offset;
+            }
+        }
+
+        private static final int EOCD_SIG = 0x06054b50;
+        private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+        private static final int ZIP64_EOCD_SIG = 0x06064b50;
+        private static final int CEN_SIG = 0x02014b50;
+        private static final int LOC_SIG = 0x04034b50;
+
+        // <zip>.idx 第一行：對應的 zip 名稱與大小
+        static String archiveStamp(File zf) {
+            return "#archive\t" + zf.getName() + "\tsize=" + zf.length();
+        }
+
+        // 讀上傳端的 <zip>.idx 取代掃 central directory：第一行須與 zip 名稱、大小相符，
+        // 且列數須等於 end record 的項目數（確認 zip 已傳完且索引屬於這顆 zip）
+        static List<Entry> readIndexFile(File zf, File idx) throws IOException {
+            List<Entry> out = new ArrayList<Entry>();
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(idx), "UTF-8"));
+            try {
+                String first = r.readLine();
+                if (first == null || !first.equals(archiveStamp(zf))) throw new IOException("索引與 zip 名稱或大小不符");
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("#") || line.length() == 0) continue;
+                    String[] c = line.split("\t", -1);
+                    if (c.length != ROW_WIDTH) throw new IOException("索引列欄位數不符: " + line);
+                    try {
+                        out.add(Entry.fromRow(c, 0));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("索引列格式錯誤: " + line);
+                    }
+                }
+            } finally {
+                closeQuietly(r);
+            }
+            RandomAccessFile raf = new RandomAccessFile(zf, "r");
+            try {
+                long total = readEnd(raf)[0];
+                if (total != out.size()) throw new IOException("項目數不符: idx=" + out.size() + ", end record=" + total);
+            } finally {
+                closeQuietly(raf);
+            }
+            return out;
+        }
+
+        // 只讀檔尾與 central directory，並逐一確認 local header 簽章；資料本體不讀
+        static List<Entry> read(File zf, TimeZone tz) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(zf, "r");
+            try {
+                long[] end = readEnd(raf);
+                long total = end[0];
+                long cdSize = end[1];
+                long cdOffset = end[2];
+
+                byte[] cd = new byte[(int) cdSize];
+                raf.seek(cdOffset);
+                raf.readFully(cd);
+
+                List<Entry> out = new ArrayList<Entry>();
+                int pos = 0;
+                byte[] loc = new byte[30];
+                while (pos < cd.length) {
+                    if (pos + 46 > cd.length || le32(cd, pos) != CEN_SIG) throw new IOException("central directory 損毀 @" + (cdOffset + pos));
+                    Entry e = new Entry();
+                    e.method = le16(cd, pos + 10);
+                    int dosTime = le16(cd, pos + 12);
+                    int dosDate = le16(cd, pos + 14);
+                    e.crc = le32u(cd, pos + 16);
+                    e.csize = le32u(cd, pos + 20);
+                    e.size = le32u(cd, pos + 24);
+                    int nameLen = le16(cd, pos + 28);
+                    int extraLen = le16(cd, pos + 30);
+                    int commentLen = le16(cd, pos + 32);
+                    e.offset = le32u(cd, pos + 42);
+                    e.name = new String(cd, pos + 46, nameLen, "UTF-8");
+                    e.mtime = dosToMillis(dosDate, dosTime, tz); // 近似值：沒有 0x5455 時才用
+
+                    // 額外欄位：ZIP64 (0x0001) 與延伸時間戳 (0x5455，本程式打包的 zip 都有，精確到秒)
+                    int x = pos + 46 + nameLen;
+                    int xEnd = x + extraLen;
+                    while (x + 4 <= xEnd) {
+                        int tag = le16(cd, x);
+                        int sz = le16(cd, x + 2);
+                        int d = x + 4;
+                        if (tag == 0x0001) {
+                            if (e.size == 0xFFFFFFFFL) { e.size = le64(cd, d); d += 8; }
+                            if (e.csize == 0xFFFFFFFFL) { e.csize = le64(cd, d); d += 8; }
+                            if (e.offset == 0xFFFFFFFFL) { e.offset = le64(cd, d); }
+                        } else if (tag == 0x5455 && sz >= 5 && (cd[d] & 1) != 0) {
+                            e.mtime = le32u(cd, d + 1) * 1000L;
+                        }
+                        x += 4 + sz;
+                    }
+                    pos = xEnd + commentLen;
+
+                    raf.seek(e.offset);
+                    raf.readFully(loc);
+                    if (le32(loc, 0) != LOC_SIG || le16(loc, 26) != nameLen) {
+                        throw new IOException("local header 不符: " + e.name + " @" + e.offset);
+                    }
+                    out.add(e);
+                }
+                if (out.size() != total) throw new IOException("項目數不符: central=" + out.size() + ", end record=" + total);
+                return out;
+            } finally {
+                closeQuietly(raf);
+            }
+        }
+
+        // 讀 end of central directory（含 ZIP64）：回傳 {項目數, central directory 大小, 位置}
+        private static long[] readEnd(RandomAccessFile raf) throws IOException {
+            long len = raf.length();
+            if (len < 22) throw new IOException("檔案過小，不是 zip");
+            int tailLen = (int) Math.min(len, 22 + 65535);
+            byte[] tail = new byte[tailLen];
+            raf.seek(len - tailLen);
+            raf.readFully(tail);
+            int eocd = -1;
+            for (int i = tailLen - 22; i >= 0; i--) {
+                if (le32(tail, i) == EOCD_SIG) { eocd = i; break; }
+            }
+            if (eocd < 0) throw new IOException("找不到 end of central directory（可能未傳完）");
+
+            long total = le16(tail, eocd + 10);
+            long cdSize = le32u(tail, eocd + 12);
+            long cdOffset = le32u(tail, eocd + 16);
+            if (eocd >= 20 && le32(tail, eocd - 20) == ZIP64_LOCATOR_SIG) {
+                long z64 = le64(tail, eocd - 20 + 8);
+                byte[] rec = new byte[56];
+                raf.seek(z64);
+                raf.readFully(rec);
+                if (le32(rec, 0) != ZIP64_EOCD_SIG) throw new IOException("ZIP64 end record 損毀");
+                total = le64(rec, 32);
+                cdSize = le64(rec, 40);
+                cdOffset = le64(rec, 48);
+            }
+            if (cdOffset + cdSize > len || cdSize > Integer.MAX_VALUE) throw new IOException("central directory 位置超出檔案範圍");
+            return new long[] {total, cdSize, cdOffset};
+        }
+
+        // collector.verify.crc=true 時：逐一解壓比對 CRC（會讀完整顆 zip）
+        static void verifyCrc(File zf, List<Entry> entries) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(zf, "r");
+            try {
+                OutputStream sink = new OutputStream() {
+                    public void write(int b) {}
+                    public void write(byte[] b, int off, int len) {}
+                };
+                for (int i = 0; i < entries.size(); i++) {
+                    if (entries.get(i).name.endsWith("/")) continue;
+                    extract(raf, entries.get(i), sink);
+                }
+            } finally {
+                closeQuietly(raf);
+            }
+        }
+
+        // 從 offset 讀 local header，跳到資料起點，只讀 csize 位元組並解壓，最後比對 CRC
+        static void extract(RandomAccessFile raf, Entry e, OutputStream out) throws IOException {
+            byte[] loc = new byte[30];
+            raf.seek(e.offset);
+            raf.readFully(loc);
+            if (le32(loc, 0) != LOC_SIG) throw new IOException("local header 簽章不符 @" + e.offset);
+            raf.seek(e.offset + 30 + le16(loc, 26) + le16(loc, 28));
+            InputStream data = new BoundedInput(java.nio.channels.Channels.newInputStream(raf.getChannel()), e.csize);
+            copyEntryData(data, e, out);
+        }
+
+        // 與 extract 相同，但來源為已定位在 local header 的串流（例如 FTP REST 之後的下載串流）
+        static void extract(InputStream in, Entry e, OutputStream out) throws IOException {
+            DataInputStream din = new DataInputStream(in);
+            byte[] loc = new byte[30];
+            din.readFully(loc);
+            if (le32(loc, 0) != LOC_SIG) throw new IOException("local header 簽章不符 @" + e.offset);
+            long skip = le16(loc, 26) + le16(loc, 28);
+            while (skip > 0) {
+                int n = din.skipBytes((int) skip);
+                if (n <= 0) throw new EOFException("local header 不完整 @" + e.offset);
+                skip -= n;
+            }
+            copyEntryData(new BoundedInput(din, e.csize), e, out);
+        }
+
+        // 資料流（已定位在壓縮資料起點）→ 解壓 → out，並驗證大小與 CRC
+        static void copyEntryData(InputStream data, Entry e, OutputStream out) throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] in = new byte[8192];
+            byte[] buf = new byte[8192];
+            long written = 0;
+            if (e.method == ZipEntry.STORED) {
+                int n;
+                while ((n = data.read(in)) > 0) {
+                    crc.update(in, 0, n);
+                    out.write(in, 0, n);
+                    written += n;
+                }
+            } else if (e.method == ZipEntry.DEFLATED) {
+                Inflater inf = new Inflater(true);
+                try {
+                    boolean dummy = false;
+                    while (!inf.finished()) {
+                        if (inf.needsInput()) {
+                            int n = data.read(in);
+                            if (n > 0) {
+                                inf.setInput(in, 0, n);
+                            } else if (!dummy) {
+                                inf.setInput(new byte[1], 0, 1); // nowrap 模式需多一個位元組才能結束
+                                dummy = true;
+                            } else {
+                                throw new EOFException("壓縮資料不完整");
+                            }
+                        }
+                        int n;
+                        try {
+                            n = inf.inflate(buf);
+                        } catch (DataFormatException dfe) {
+                            throw new IOException("解壓失敗: " + dfe.getMessage());
+                        }
+                        if (n > 0) {
+                            crc.update(buf, 0, n);
+                            out.write(buf, 0, n);
+                            written += n;
+                        } else if (inf.needsDictionary()) {
+                            throw new IOException("不支援的壓縮字典");
+                        }
+                    }
+                } finally {
+                    inf.end();
+                }
+            } else {
+                throw new IOException("不支援的壓縮方式: " + e.method);
+            }
+            if (written != e.size || crc.getValue() != e.crc) {
+                throw new IOException("CRC/大小不符: " + (e.name != null ? e.name : "@" + e.offset));
+            }
+        }
+
+        // DOS 時間不帶時區且精度 2 秒；以設定時區解讀，若打包端時區不同會有整數小時的偏差
+        private static long dosToMillis(int date, int time, TimeZone tz) {
+            Calendar cal = Calendar.getInstance(tz);
+            cal.clear();
+            cal.set(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0x0f) - 1, date & 0x1f,
+                    (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time & 0x1f) * 2);
+            return cal.getTimeInMillis();
+        }
+
+        static int le16(byte[] b, int i) { return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8); }
+        static int le32(byte[] b, int i) { return le16(b, i) | (le16(b, i + 2) << 16); }
+        static long le32u(byte[] b, int i) { return le32(b, i) & 0xFFFFFFFFL; }
+        static long le64(byte[] b, int i) { return le32u(b, i) | (le32u(b, i + 4) << 32); }
+    }
+
+    // 從來源目前位置起，最多讀 remaining 個位元組（不關閉來源）
+    private static final class BoundedInput extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInput(InputStream in, long remaining) {
+            this.in = in;
+            this.remaining = remaining;
+        }
+
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+    }
+
+    // ===== 資源節流（governor.*）：在測試機上低干擾執行 =====
+    // 掃描/搬移/壓縮的迴圈中呼叫 checkpoint()；上傳只在兩顆 zip 之間呼叫 betweenTasks()，不在傳輸中途暫停：
+    //  1. 系統 CPU 使用率或磁碟佇列長度超過 pause.above 就暫停，降到 resume.below 以下才恢復（遲滯避免反覆切換）
+    //  2. 本程序 CPU 用量超過 governor.cpu.share（佔整機比例）時插入 sleep 壓低平均用量
+    //  3. 到達「期限 - 保留時間」後不再節流，全速完成
+    // 取樣在背景執行緒進行（磁碟佇列：Linux 讀 /proc/diskstats，Windows 讀常駐 typeperf 的輸出），checkpoint 本身只讀快取值。
+    private static final class Governor {
+        private static boolean enabled;
+        private static int maxThreads = Integer.MAX_VALUE;
+        private static double cpuShare;
+        private static double cpuPauseAbove = -1, cpuResumeBelow = -1;
+        private static double diskPauseAbove = -1, diskResumeBelow = -1;
+        private static long sampleIntervalMs = 2000;
+        private static long deadlineMillis = -1;
+        private static long reserveMillis;
+        private static TimeZone tz = TimeZone.getDefault();
+
+        private static volatile double systemCpu = -1;  // 0~1，-1 表示無法取得
+        private static volatile double diskQueue = -1;  // 平均佇列長度，-1 表示無法取得
+        private static volatile boolean paused;
+        private static volatile Process typeperf;
+        private static volatile boolean deadlineMode;
+        private static volatile long nextCheckNanos;
+
+        private static long windowCpu = -1, windowWall;
+        private static final java.util.concurrent.atomic.AtomicLong throttledNanos = new java.util.concurrent.atomic.AtomicLong();
+        private static int pauseCount;
+
+        private static java.lang.management.OperatingSystemMXBean os;
+
+        static synchronized void init(Properties p, TimeZone timeZone) {
+            enabled = Boolean.parseBoolean(p.getProperty("governor.enabled", "false").trim());
+            if (!enabled) return;
+            if (timeZone != null) tz = timeZone;
+            int mt = parseInt(p.getProperty("governor.max.threads", "0").trim(), 0);
+            if (mt > 0) maxThreads = mt;
+            cpuShare = parseDouble(p.getProperty("governor.cpu.share", "0"), 0);
+            cpuPauseAbove = parseDouble(p.getProperty("governor.cpu.pause.above", "-1"), -1);
+            cpuResumeBelow = parseDouble(p.getProperty("governor.cpu.resume.below", String.valueOf(cpuPauseAbove)), cpuPauseAbove);
+            diskPauseAbove = parseDouble(p.getProperty("governor.disk.queue.pause.above", "-1"), -1);
+            diskResumeBelow = parseDouble(p.getProperty("governor.disk.queue.resume.below", String.valueOf(diskPauseAbove)), diskPauseAbove);
+            sampleIntervalMs = Math.max(200, parseInt(p.getProperty("governor.sample.interval.ms", "2000").trim(), 2000));
+            reserveMillis = Math.max(0, parseInt(p.getProperty("governor.deadline.reserve.min", "30").trim(), 30)) * 60000L;
+            deadlineMillis = computeDeadline(p.getProperty("governor.deadline", "").trim());
+
+            os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+            if (Boolean.parseBoolean(p.getProperty("governor.low.priority", "true").trim())) {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY); // 之後建立的執行緒會繼承
+            }
+            if (cpuPauseAbove > 0 || diskPauseAbove > 0) startSampler();
+
+            Log.info("資源節流啟用: max.threads=" + (mt > 0 ? String.valueOf(mt) : "不限")
+                    + ", cpu.share=" + cpuShare
+                    + ", cpu pause/resume=" + cpuPauseAbove + "/" + cpuResumeBelow
+                    + ", disk.queue pause/resume=" + diskPauseAbove + "/" + diskResumeBelow
+                    + ", 期限=" + (deadlineMillis > 0 ? fmtTime(deadlineMillis) + "（保留 " + (reserveMillis / 60000) + " 分）" : "無"));
+        }
+
+        // 節流是否仍在作用（未啟用或已進入期限模式時為 false）
+        static boolean active() {
+            return enabled && !deadlineMode;
+        }
+
+        // 兩個工作之間呼叫（例如上傳兩顆 zip 之間，此時沒有傳輸在半途）：不受 50ms 間隔限制，一定評估一次
+        static void betweenTasks() {
+            if (!active()) return;
+            nextCheckNanos = 0;
+            checkpoint();
+        }
+
+        // 同時進行的工作數上限（上傳端的 FTP 傳輸數）
+        static int capThreads(int requested) {
+            return enabled ? Math.max(1, Math.min(requested, maxThreads)) : requested;
+        }
+
+        // 熱迴圈中呼叫；未到檢查時間時只比較一次時間
+        static void checkpoint() {
+            if (!enabled || deadlineMode) return;
+            long now = System.nanoTime();
+            if (now < nextCheckNanos) return;
+            nextCheckNanos = now + 50000000L; // 每 50ms 評估一次
+
+            if (pastDeadlineReserve()) return;
+            long slept = 0;
+            while (overloaded()) {
+                slept += sleepMs(Math.min(500, sampleIntervalMs));
+                if (pastDeadlineReserve()) break;
+            }
+            slept += sleepMs(cpuShareDelay());
+            if (slept > 0) throttledNanos.addAndGet(slept * 1000000L);
+        }
+
+        // 結束時寫入 log：節流累計時間與完成時間相對期限
+        static void report() {
+            if (!enabled) return;
+            long now = System.currentTimeMillis();
+            StringBuilder sb = new StringBuilder("資源節流統計: 累計節流 ")
+                    .append(String.format(Locale.ROOT, "%.1f", throttledNanos.get() / 1e9)).append(" 秒")
+                    .append("（暫停 ").append(pauseCount).append(" 次）, 完成時間 ").append(fmtTime(now));
+            if (deadlineMillis > 0) {
+                long slackMin = (deadlineMillis - now) / 60000;
+                sb.append(", 期限 ").append(fmtTime(deadlineMillis));
+                sb.append(slackMin >= 0 ? "，提前 " + slackMin + " 分完成" : "，超過期限 " + (-slackMin) + " 分");
+            }
+            if (deadlineMillis > 0 && now > deadlineMillis) Log.warn(sb.toString());
+            else Log.info(sb.toString());
+        }
+
+        private static synchronized boolean pastDeadlineReserve() {
+            if (deadlineMillis <= 0 || deadlineMode) return deadlineMode;
+            if (System.currentTimeMillis() >= deadlineMillis - reserveMillis) {
+                deadlineMode = true;
+                if (paused) paused = false;
+                Log.warn("接近期限 " + fmtTime(deadlineMillis) + "，停止節流並全速完成。");
+            }
+            return deadlineMode;
+        }
+
+        // 遲滯判斷：暫停中需降到 resume 以下才放行
+        private static synchronized boolean overloaded() {
+            double cpu = systemCpu;
+            double dq = diskQueue;
+            boolean cpuHigh = cpuPauseAbove > 0 && cpu >= 0 && cpu > (paused ? cpuResumeBelow : cpuPauseAbove);
+            boolean diskHigh = diskPauseAbove > 0 && dq >= 0 && dq > (paused ? diskResumeBelow : diskPauseAbove);
+            boolean high = cpuHigh || diskHigh;
+            if (high && !paused) {
+                paused = true;
+                pauseCount++;
+                Log.info("系統負載過高，暫停處理（CPU=" + pct(cpu) + ", 磁碟佇列=" + fmtQueue(dq) + "）");
+            } else if (!high && paused) {
+                paused = false;
+                Log.info("系統負載回落，恢復處理（CPU=" + pct(cpu) + ", 磁碟佇列=" + fmtQueue(dq) + "）");
+            }
+            return high;
+        }
+
+        // 本程序 CPU 時間 / 經過時間 超過允許比例時，回傳需補睡的毫秒數
+        private static synchronized long cpuShareDelay() {
+            if (cpuShare <= 0 || !(os instanceof com.sun.management.OperatingSystemMXBean)) return 0;
+            long cpu = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            long wall = System.nanoTime();
+            if (cpu < 0) return 0;
+            if (windowCpu < 0) {
+                windowCpu = cpu;
+                windowWall = wall;
+                return 0;
+            }
+            long dw = wall - windowWall;
+            if (dw < 200000000L) return 0; // 至少累積 200ms 再判斷
+            long dc = cpu - windowCpu;
+            double allowedCores = cpuShare * Runtime.getRuntime().availableProcessors();
+            long needWall = (long) (dc / allowedCores);
+            long delay = needWall > dw ? Math.min(5000, (needWall - dw) / 1000000L) : 0;
+            // 下一個視窗從這次補睡結束後起算，補睡時間不能再抵下一段的用量
+            windowCpu = cpu;
+            windowWall = wall + delay * 1000000L;
+            return delay;
+        }
+
+        private static long sleepMs(long ms) {
+            if (ms <= 0) return 0;
+            try {
+                Thread.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            return ms;
+        }
+
+        private static void startSampler() {
+            final boolean windows = System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("win");
+            if (windows && diskPauseAbove > 0) startTypeperf();
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        if (cpuPauseAbove > 0 && os instanceof com.sun.management.OperatingSystemMXBean) {
+                            double v = ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+                            systemCpu = (v >= 0 && !Double.isNaN(v)) ? v : -1;
+                        }
+                        if (diskPauseAbove > 0 && !windows) {
+                            diskQueue = sampleDiskQueueLinux();
+                        }
+                        Log.debug("負載取樣: CPU=" + pct(systemCpu) + ", 磁碟佇列=" + fmtQueue(diskQueue));
+                        try {
+                            Thread.sleep(sampleIntervalMs);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "governor-sampler");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // Windows：常駐一個 typeperf -si 每隔取樣間隔輸出一行，逐行更新 diskQueue（不必每次取樣都起新程序）。
+        // 程序結束就等一分鐘後重啟；本程式結束時一併終止
+        private static void startTypeperf() {
+            final String interval = String.valueOf(Math.max(1, sampleIntervalMs / 1000));
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        BufferedReader r = null;
+                        try {
+                            Process proc = new ProcessBuilder("typeperf", "\\PhysicalDisk(_Total)\\Current Disk Queue Length", "-si", interval)
+                                    .redirectErrorStream(true).start();
+                            typeperf = proc;
+                            r = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+                            String line;
+                            while ((line = r.readLine()) != null) {
+                                double v = parseTypeperfLine(line);
+                                if (v >= 0) diskQueue = v;
+                            }
+                            Log.warn("typeperf 已結束（exit=" + proc.waitFor() + "），一分鐘後重新啟動");
+                        } catch (Exception e) {
+                            Log.warn("無法執行 typeperf，磁碟佇列暫不檢查: " + e.getMessage());
+                        } finally {
+                            closeQuietly(r);
+                            Process proc = typeperf;
+                            if (proc != null) proc.destroy();
+                            diskQueue = -1;
+                        }
+                        try {
+                            Thread.sleep(60000);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "governor-typeperf");
+            t.setDaemon(true);
+            t.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    Process proc = typeperf;
+                    if (proc != null) proc.destroy();
+                }
+            }));
+        }
+
+        // typeperf CSV 一行："時間","數值"；標題列或非數值回傳 -1（部分語系以逗號為小數點）
+        private static double parseTypeperfLine(String line) {
+            int comma = line.lastIndexOf("\",\"");
+            if (comma < 0 || !line.startsWith("\"")) return -1;
+            String num = line.substring(comma + 3).replace("\"", "").replace(',', '.').trim();
+            try {
+                return Double.parseDouble(num);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // /proc/diskstats 第 12 欄為「目前進行中的 I/O 數」，加總實體磁碟（/sys/block 下有的裝置）
+        private static double sampleDiskQueueLinux() {
+            BufferedReader r = null;
+            try {
+                r = new BufferedReader(new FileReader("/proc/diskstats"));
+                String line;
+                long total = 0;
+                while ((line = r.readLine()) != null) {
+                    String[] f = line.trim().split("\\s+");
+                    if (f.length < 12) continue;
+                    if (f[2].startsWith("loop") || f[2].startsWith("ram") || !new File("/sys/block/" + f[2]).exists()) continue;
+                    total += Long.parseLong(f[11]);
+                }
+                return total;
+            } catch (Exception e) {
+                return -1;
+            } finally {
+                closeQuietly(r);
+            }
+        }
+
+        // HH:mm → 啟動後下一次出現的該時刻
+        private static long computeDeadline(String hhmm) {
+            if (hhmm.length() == 0) return -1;
+            try {
+                String[] parts = hhmm.split(":");
+                Calendar cal = Calendar.getInstance(tz);
+                long now = cal.getTimeInMillis();
+                cal.set(Calendar.HOUR_OF_DAY, Integer.parseInt(parts[0].trim()));
+                cal.set(Calendar.MINUTE, parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0);
+                cal.set(Calendar.SECOND, 0);
+                cal.set(Calendar.MILLISECOND, 0);
+                if (cal.getTimeInMillis() <= now) cal.add(Calendar.DAY_OF_MONTH, 1);
+                return cal.getTimeInMillis();
+            } catch (Exception e) {
+                Log.warn("governor.deadline 格式錯誤（應為 HH:mm），忽略期限: " + hhmm);
+                return -1;
+            }
+        }
+
+        private static String fmtTime(long millis) {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            sdf.setTimeZone(tz);
+            return sdf.format(new Date(millis));
+        }
+
+        private static String pct(double v) {
+            return v < 0 ? "N/A" : String.format(Locale.ROOT, "%.0f%%", v * 100);
+        }
+
+        private static String fmtQueue(double v) {
+            return v < 0 ? "N/A" : String.format(Locale.ROOT, "%.1f", v);
+        }
+
+        private static double parseDouble(String s, double def) {
+            try { return Double.parseDouble(s.trim()); } catch (Exception e) { return def; }
+        }
+    }
+
     // ===== 基本工具 =====
     private static int parseInt(String s, int def) {
         try { return Integer.parseInt(s); } catch (Exception e) { return def; }